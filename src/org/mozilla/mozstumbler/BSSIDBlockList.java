@@ -1,16 +1,25 @@
 package org.mozilla.mozstumbler;
 
-import android.net.wifi.ScanResult;
+import android.content.Context;
+import android.os.FileObserver;
 import android.util.Log;
 
-import java.util.Locale;
-import java.util.regex.Pattern;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
 
 final class BSSIDBlockList {
-    private static final String  LOGTAG = BSSIDBlockList.class.getName();
-    private static final String  NULL_BSSID        = "000000000000";
-    private static final String  WILDCARD_BSSID    = "ffffffffffff";
-    private static final Pattern BSSID_PATTERN     = Pattern.compile("([0-9a-f]{12})");
+    private static final String  LOGTAG            = BSSIDBlockList.class.getName();
+    private static final String  RULES_FILE_NAME   = "oui_blocklist.txt";
+    private static final String  RULES_VERSION_KEY = "version";
+    private static final long    NULL_BSSID        = 0L;
+    private static final long    WILDCARD_BSSID    = 0xffffffffffffL;
+    private static final int     BSSID_DIGITS      = 12;
+    private static final char[]  HEX_DIGITS        = "0123456789abcdef".toCharArray();
 
     private static final String[] OUI_LIST = {
         // Some iPad and iPhone OUIs:
@@ -37,47 +46,251 @@ final class BSSIDBlockList {
         "a854b2",
     };
 
+    /**
+     * Blocked OUIs as sorted 24-bit values, for a binary search on the upper half of a BSSID.
+     * Immutable, replaced as a whole when the rules file changes.
+     */
+    private static final class Rules {
+        final int version;
+        final int[] ouis;
+
+        Rules(int version, int[] ouis) {
+            this.version = version;
+            this.ouis = ouis;
+        }
+    }
+
+    private static final Rules BUILTIN_RULES = new Rules(0, compileOuiList(OUI_LIST, new int[0], 0));
+
+    private static volatile Rules sRules = BUILTIN_RULES;
+
+    // Incremented when the rules file is deleted, so that a load started before is discarded.
+    // Guarded by BSSIDBlockList.class.
+    private static int sResetCount;
+
     private BSSIDBlockList() {
     }
 
-    static boolean contains(ScanResult scanResult) {
-        String BSSID = scanResult.BSSID;
-        if (BSSID == null || NULL_BSSID.equals(BSSID) || WILDCARD_BSSID.equals(BSSID)) {
+    /**
+     * @param bssid BSSID as returned by {@link #parseBSSID(String)}
+     */
+    static boolean contains(long bssid) {
+        if (bssid < 0 || bssid == NULL_BSSID || bssid == WILDCARD_BSSID) {
             return true; // blocked!
         }
 
-        if (!isCanonicalBSSID(BSSID)) {
-            Log.w(LOGTAG, "", new IllegalArgumentException("Unexpected BSSID format: " + BSSID));
+        if (Arrays.binarySearch(sRules.ouis, (int) (bssid >>> 24)) >= 0) {
             return true; // blocked!
         }
 
-        for (String oui : OUI_LIST) {
-            if (BSSID.startsWith(oui)) {
-                return true; // blocked!
-            }
-        }
-
         return false; // OK
     }
 
-    static String canonicalizeBSSID(String BSSID) {
+    /**
+     * Parses a BSSID into its 48-bit value, without allocating.
+     * Hex digits may be in either case, and may be delimited by ':', '-' or '.'
+     * (some devices return BSSIDs with '-' or '.' delimiters).
+     *
+     * @return the BSSID value, or -1 if the string is not a valid BSSID
+     */
+    static long parseBSSID(String BSSID) {
         if (BSSID == null) {
-            return "";
+            return -1;
+        }
+
+        long value = 0;
+        int digits = 0;
+        for (int i = 0, length = BSSID.length(); i < length; i++) {
+            final char c = BSSID.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else if (c == ':' || c == '-' || c == '.') {
+                continue;
+            } else {
+                return -1;
+            }
+            if (++digits > BSSID_DIGITS) {
+                return -1;
+            }
+            value = (value << 4) | digit;
         }
+        return digits == BSSID_DIGITS ? value : -1;
+    }
 
+    /**
+     * Returns the canonical form (12 lowercase hex digits) of a BSSID parsed by
+     * {@link #parseBSSID(String)}. The original string is returned as is if it is
+     * already canonical.
+     */
+    static String canonicalizeBSSID(String BSSID, long value) {
+        if (value < 0) {
+            return "";
+        }
         if (isCanonicalBSSID(BSSID)) {
             return BSSID;
         }
+        final char[] chars = new char[BSSID_DIGITS];
+        for (int i = BSSID_DIGITS - 1; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
 
-        // Some devices may return BSSIDs with '-' or '.' delimiters.
-        BSSID = BSSID.toLowerCase(Locale.US).replace(":", "")
-                                            .replace("-", "")
-                                            .replace(".", "");
-
-        return isCanonicalBSSID(BSSID) ? BSSID : "";
+    static String canonicalizeBSSID(String BSSID) {
+        return canonicalizeBSSID(BSSID, parseBSSID(BSSID));
     }
 
     private static boolean isCanonicalBSSID(String BSSID) {
-        return BSSID_PATTERN.matcher(BSSID).matches();
+        if (BSSID.length() != BSSID_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < BSSID_DIGITS; i++) {
+            final char c = BSSID.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] compileOuiList(String[] list, int[] extra, int extraCount) {
+        final int[] ouis = new int[list.length + extraCount];
+        for (int i = 0; i < list.length; i++) {
+            ouis[i] = Integer.parseInt(list[i], 16);
+        }
+        System.arraycopy(extra, 0, ouis, list.length, extraCount);
+        Arrays.sort(ouis);
+        return ouis;
+    }
+
+    static File getRulesFile(Context context) {
+        return new File(context.getFilesDir(), RULES_FILE_NAME);
+    }
+
+    /**
+     * Loads additional OUIs from the rules file, on top of the built-in OUI_LIST.
+     * The new rules replace the current ones only if their version is newer.
+     *
+     * The file is a list of OUIs, one per line (e.g. "00:1b:63" or "001b63"), preceded by a
+     * "version=N" line. Empty lines and lines starting with '#' are ignored.
+     */
+    static void loadRules(File file) {
+        final int resetCount;
+        synchronized (BSSIDBlockList.class) {
+            resetCount = sResetCount;
+        }
+
+        final Rules rules;
+        try {
+            rules = readRules(file);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Couldn't read " + file, e);
+            return;
+        }
+
+        synchronized (BSSIDBlockList.class) {
+            if (resetCount != sResetCount || rules.version <= sRules.version) {
+                return;
+            }
+            sRules = rules;
+        }
+        Log.i(LOGTAG, "OUI blocklist version " + rules.version + ": " + rules.ouis.length + " OUIs");
+    }
+
+    /**
+     * Same as {@link #loadRules(File)}, on a background thread.
+     */
+    static void loadRulesInBackground(final File file) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadRules(file);
+            }
+        }, "BSSIDBlockList").start();
+    }
+
+    static void resetRules() {
+        synchronized (BSSIDBlockList.class) {
+            sResetCount++;
+            sRules = BUILTIN_RULES;
+        }
+    }
+
+    private static Rules readRules(File file) throws IOException {
+        int version = -1;
+        int[] ouis = new int[64];
+        int count = 0;
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                if (line.startsWith(RULES_VERSION_KEY)) {
+                    int separator = line.indexOf('=');
+                    try {
+                        version = Integer.parseInt(line.substring(separator + 1).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid version: " + line);
+                    }
+                    continue;
+                }
+                // An OUI is the first half of a BSSID
+                long value = parseBSSID(line + "000000");
+                if (value < 0) {
+                    Log.w(LOGTAG, "Skip invalid OUI: " + line);
+                    continue;
+                }
+                if (count == ouis.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(ouis, 0, grown, 0, count);
+                    ouis = grown;
+                }
+                ouis[count++] = (int) (value >>> 24);
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (version <= 0) {
+            throw new IOException("Missing rules version");
+        }
+        return new Rules(version, compileOuiList(OUI_LIST, ouis, count));
+    }
+
+    /**
+     * Reloads the rules when the rules file is written or replaced.
+     */
+    static final class RulesObserver extends FileObserver {
+        private final File mFile;
+
+        RulesObserver(Context context) {
+            super(context.getFilesDir().getPath(),
+                    FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE);
+            mFile = getRulesFile(context);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (!RULES_FILE_NAME.equals(path)) {
+                return;
+            }
+            if ((event & FileObserver.DELETE) != 0) {
+                resetRules();
+            } else {
+                loadRules(mFile);
+            }
+        }
     }
 }
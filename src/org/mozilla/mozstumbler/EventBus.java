@@ -0,0 +1,103 @@
+package org.mozilla.mozstumbler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process publish/subscribe between the scanners, the Reporter and the UI.
+ *
+ * Each kind of event has its own typed {@link Topic}, and events are handed over to the
+ * subscribers as is: published objects are shared and must not be modified afterwards.
+ * A subscriber is called either synchronously on the publishing thread, or on the
+ * thread of a Looper of its choice.
+ */
+public final class EventBus {
+
+    public interface Subscriber<T> {
+        void onEvent(T event);
+    }
+
+    public static final class Topic<T> {
+        private final String mName;
+        private final CopyOnWriteArrayList<Subscription<T>> mSubscriptions =
+                new CopyOnWriteArrayList<Subscription<T>>();
+
+        public Topic(String name) {
+            mName = name;
+        }
+
+        public void publish(T event) {
+            for (Subscription<T> subscription : mSubscriptions) {
+                subscription.deliver(event);
+            }
+        }
+
+        /**
+         * Delivers the events of this topic to the subscriber on the thread of the looper,
+         * or synchronously on the publishing thread if looper is null.
+         */
+        public void subscribe(Subscriber<T> subscriber, Looper looper) {
+            mSubscriptions.add(new Subscription<T>(subscriber, looper));
+        }
+
+        public void unsubscribe(Subscriber<T> subscriber) {
+            for (Subscription<T> subscription : mSubscriptions) {
+                if (subscription.mSubscriber == subscriber) {
+                    subscription.cancel();
+                    mSubscriptions.remove(subscription);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static final class Subscription<T> implements Handler.Callback {
+        private static final int MSG_EVENT = 1;
+
+        private final Subscriber<T> mSubscriber;
+        private final Handler mHandler;
+        private volatile boolean mCancelled;
+
+        Subscription(Subscriber<T> subscriber, Looper looper) {
+            mSubscriber = subscriber;
+            mHandler = looper == null ? null : new Handler(looper, this);
+        }
+
+        void deliver(T event) {
+            if (mHandler == null) {
+                mSubscriber.onEvent(event);
+            } else {
+                mHandler.obtainMessage(MSG_EVENT, event).sendToTarget();
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mHandler != null) {
+                mHandler.removeMessages(MSG_EVENT);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(Message msg) {
+            if (msg.what != MSG_EVENT) {
+                return false;
+            }
+            if (!mCancelled) {
+                mSubscriber.onEvent((T) msg.obj);
+            }
+            return true;
+        }
+    }
+
+    private EventBus() {
+    }
+}
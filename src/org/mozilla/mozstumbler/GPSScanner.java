@@ -1,7 +1,6 @@
 package org.mozilla.mozstumbler;
 
 import android.content.Context;
-import android.content.Intent;
 import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
@@ -9,17 +8,25 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.preferences.Prefs;
 
 public class GPSScanner implements LocationListener {
-    public static final String GPS_SCANNER_EXTRA_SUBJECT = "GPSScanner";
-    public static final String GPS_SCANNER_ARG_LOCATION = "org.mozilla.mozstumbler.GPSScanner.location";
+    /**
+     * New locations, or null when the location is lost.
+     */
+    public static final EventBus.Topic<Location> LOCATION =
+            new EventBus.Topic<Location>("GPSScanner.LOCATION");
+
+    public static final EventBus.Topic<SatelliteStatus> STATUS =
+            new EventBus.Topic<SatelliteStatus>("GPSScanner.STATUS");
 
     private static final String   LOGTAG                  = Scanner.class.getName();
     private static final long     GEO_MIN_UPDATE_TIME     = 1000;
+    private static final long     GEO_STATIONARY_UPDATE_TIME = 15 * 1000;
     private static final float    GEO_MIN_UPDATE_DISTANCE = 3;
     private static final int      MIN_SAT_USED_IN_FIX     = 3;
 
@@ -31,17 +38,35 @@ public class GPSScanner implements LocationListener {
     private double mLongitude;
     private LocationBlockList mBlockList;
     private boolean mAutoGeofencing;
+    private final MotionDetector mMotionDetector = new MotionDetector();
+
+    private final EventBus.Subscriber<Integer> mNewAPsSubscriber = new EventBus.Subscriber<Integer>() {
+        @Override
+        public void onEvent(Integer newAPs) {
+            if (mMotionDetector.onWifiScan(newAPs, SystemClock.elapsedRealtime())) {
+                onMotionStateChanged();
+            }
+        }
+    };
+
+    public static final class SatelliteStatus {
+        public final int fixes;
+        public final int satellites;
+
+        SatelliteStatus(int fixes, int satellites) {
+            this.fixes = fixes;
+            this.satellites = satellites;
+        }
+    }
 
     GPSScanner(Context context) {
         mContext = context;
     }
 
     public void start() {
-        LocationManager lm = getLocationManager();
-        lm.requestLocationUpdates(LocationManager.GPS_PROVIDER,
-                                                            GEO_MIN_UPDATE_TIME,
-                                                            GEO_MIN_UPDATE_DISTANCE,
-                                                            this);
+        mMotionDetector.start(SystemClock.elapsedRealtime());
+        requestLocationUpdates();
+        WifiScanner.NEW_APS.subscribe(mNewAPsSubscriber, Looper.getMainLooper());
 
         reportLocationLost();
         mGPSListener = new GpsStatus.Listener() {
@@ -64,27 +89,61 @@ public class GPSScanner implements LocationListener {
                             reportLocationLost();
                         }
                         Log.d(LOGTAG, "onGpsStatusChange - satellites: " + satellites + " fixes: " + fixes);
+                        if (mMotionDetector.onTick(SystemClock.elapsedRealtime())) {
+                            onMotionStateChanged();
+                        }
                     } else if (event == GpsStatus.GPS_EVENT_STOPPED) {
                         reportLocationLost();
                     }
                 }
             };
 
-        lm.addGpsStatusListener(mGPSListener);
+        getLocationManager().addGpsStatusListener(mGPSListener);
         mBlockList = new LocationBlockList(mContext);
     }
 
     public void stop() {
         LocationManager lm = getLocationManager();
         lm.removeUpdates(this);
+        WifiScanner.NEW_APS.unsubscribe(mNewAPsSubscriber);
         reportLocationLost();
 
+        final long now = SystemClock.elapsedRealtime();
+        mMotionDetector.stop(now);
+        Log.i(LOGTAG, "GPS duty cycle: " + mMotionDetector.toString(now));
+
         if (mGPSListener != null) {
           lm.removeGpsStatusListener(mGPSListener);
           mGPSListener = null;
         }
     }
 
+    /**
+     * Lowers the rate of the GPS fixes while the device is stationary.
+     */
+    private void requestLocationUpdates() {
+        final long minTime = mMotionDetector.getState() == MotionDetector.STATE_STATIONARY
+                ? GEO_STATIONARY_UPDATE_TIME : GEO_MIN_UPDATE_TIME;
+        // Replaces the previous request of this listener
+        getLocationManager().requestLocationUpdates(LocationManager.GPS_PROVIDER,
+                                                    minTime,
+                                                    GEO_MIN_UPDATE_DISTANCE,
+                                                    this);
+    }
+
+    private void onMotionStateChanged() {
+        Log.i(LOGTAG, "GPS duty cycle: " + mMotionDetector.toString(SystemClock.elapsedRealtime()));
+        requestLocationUpdates();
+    }
+
+    public long getStationaryTime() {
+        return mMotionDetector.getTimeInState(MotionDetector.STATE_STATIONARY, SystemClock.elapsedRealtime());
+    }
+
+    public long getMovingTime() {
+        return mMotionDetector.getTimeInState(MotionDetector.STATE_MOVING, SystemClock.elapsedRealtime());
+    }
+
     public int getLocationCount() {
         return mLocationCount;
     }
@@ -125,6 +184,10 @@ public class GPSScanner implements LocationListener {
 
         if (!mAutoGeofencing) { reportNewLocationReceived(location); }
         mLocationCount++;
+
+        if (mMotionDetector.onLocation(location, SystemClock.elapsedRealtime())) {
+            onMotionStateChanged();
+        }
     }
 
     @Override
@@ -151,25 +214,14 @@ public class GPSScanner implements LocationListener {
     }
 
     private void reportNewLocationReceived(Location location) {
-        Intent i = new Intent(ScannerService.MESSAGE_TOPIC);
-        i.putExtra(Intent.EXTRA_SUBJECT, GPS_SCANNER_EXTRA_SUBJECT);
-        i.putExtra(GPS_SCANNER_ARG_LOCATION, location);
-        i.putExtra("time", System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(i);
+        LOCATION.publish(location);
     }
 
     private void reportLocationLost() {
-        Intent i = new Intent(ScannerService.MESSAGE_TOPIC);
-        i.putExtra(Intent.EXTRA_SUBJECT, GPS_SCANNER_EXTRA_SUBJECT);
-        i.putExtra("time", System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(i);
+        LOCATION.publish(null);
     }
 
     private void reportNewGpsStatus(int fixes, int sats) {
-        Intent i = new Intent(ScannerService.MESSAGE_TOPIC);
-        i.putExtra(Intent.EXTRA_SUBJECT, GPS_SCANNER_EXTRA_SUBJECT);
-        i.putExtra("fixes", fixes);
-        i.putExtra("sats", sats);
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(i);
+        STATUS.publish(new SatelliteStatus(fixes, sats));
     }
 }
@@ -0,0 +1,47 @@
+package org.mozilla.mozstumbler;
+
+/**
+ * HyperLogLog cardinality sketch over 64-bit hashes.
+ *
+ * Uses 2^12 one-byte registers (4 KB) for a standard error of about 1.6%.
+ */
+final class HyperLogLog {
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] mRegisters = new byte[REGISTERS];
+
+    /**
+     * @param hash well-mixed 64-bit hash of the key
+     * @return true if the sketch changed
+     */
+    boolean add(long hash) {
+        final int index = (int) (hash >>> (64 - PRECISION));
+        // Position of the first set bit in the remaining bits; the guard bit bounds it
+        final int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > mRegisters[index]) {
+            mRegisters[index] = (byte) rank;
+            return true;
+        }
+        return false;
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : mRegisters) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros += 1;
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros != 0) {
+            // Small range correction: linear counting
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,173 @@
+package org.mozilla.mozstumbler;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of primitive longs, used to count unique BSSIDs and cells
+ * without keeping a boxed key for each of them.
+ *
+ * The set can be created with a limit on the number of keys it stores exactly. Once the
+ * limit is reached the keys are moved into a {@link HyperLogLog} sketch, the table is
+ * released and {@link #size()} becomes an estimate.
+ *
+ * Not thread-safe.
+ */
+public final class LongHashSet {
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final long EMPTY = 0L;
+
+    private final int mExactLimit;
+    private long[] mTable;
+    private int mMask;
+    private int mSize;
+    private boolean mHasEmptyKey;
+    private HyperLogLog mSketch;
+
+    public LongHashSet() {
+        this(NO_LIMIT);
+    }
+
+    /**
+     * @param exactLimit number of keys after which the set switches to approximate counting
+     */
+    public LongHashSet(int exactLimit) {
+        if (exactLimit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: " + exactLimit);
+        }
+        mExactLimit = exactLimit;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds a key to the set.
+     *
+     * @return true if the key was not in the set. Once the set is approximate, true if the
+     * sketch changed, which is the case for most, but not all, new keys.
+     */
+    public boolean add(long key) {
+        if (mSketch != null) {
+            return mSketch.add(hash(key));
+        }
+
+        if (key == EMPTY) {
+            if (mHasEmptyKey) {
+                return false;
+            }
+            mHasEmptyKey = true;
+        } else {
+            int i = (int) hash(key) & mMask;
+            long k;
+            while ((k = mTable[i]) != EMPTY) {
+                if (k == key) {
+                    return false;
+                }
+                i = (i + 1) & mMask;
+            }
+            mTable[i] = key;
+        }
+
+        mSize += 1;
+        if (mSize >= mExactLimit) {
+            switchToSketch();
+        } else if (mSize > (mTable.length >> 1) + (mTable.length >> 2) && mTable.length < MAX_CAPACITY) {
+            rehash(mTable.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the key is in the set. Always false once the set is approximate.
+     */
+    public boolean contains(long key) {
+        if (mSketch != null) {
+            return false;
+        }
+        if (key == EMPTY) {
+            return mHasEmptyKey;
+        }
+        int i = (int) hash(key) & mMask;
+        long k;
+        while ((k = mTable[i]) != EMPTY) {
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mMask;
+        }
+        return false;
+    }
+
+    /**
+     * Number of keys in the set, or its estimate once the set is approximate.
+     */
+    public int size() {
+        if (mSketch != null) {
+            return (int) Math.min(mSketch.estimate(), Integer.MAX_VALUE);
+        }
+        return mSize;
+    }
+
+    public boolean isApproximate() {
+        return mSketch != null;
+    }
+
+    public void clear() {
+        mSketch = null;
+        mSize = 0;
+        mHasEmptyKey = false;
+        if (mTable.length > INITIAL_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+        } else {
+            Arrays.fill(mTable, EMPTY);
+        }
+    }
+
+    private void allocate(int capacity) {
+        mTable = new long[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = mTable;
+        allocate(capacity);
+        for (long key : old) {
+            if (key != EMPTY) {
+                int i = (int) hash(key) & mMask;
+                while (mTable[i] != EMPTY) {
+                    i = (i + 1) & mMask;
+                }
+                mTable[i] = key;
+            }
+        }
+    }
+
+    private void switchToSketch() {
+        final HyperLogLog sketch = new HyperLogLog();
+        if (mHasEmptyKey) {
+            sketch.add(hash(EMPTY));
+        }
+        for (long key : mTable) {
+            if (key != EMPTY) {
+                sketch.add(hash(key));
+            }
+        }
+        mSketch = sketch;
+        mTable = new long[0];
+        mMask = 0;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3, spreads the bits of BSSIDs and packed keys
+     * over the whole word.
+     */
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
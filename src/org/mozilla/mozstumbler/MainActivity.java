@@ -7,20 +7,20 @@ import org.mozilla.mozstumbler.sync.SyncUtils;
 
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.os.StrictMode;
 import android.provider.Settings;
@@ -28,7 +28,6 @@ import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -43,74 +42,83 @@ public final class MainActivity extends FragmentActivity {
     private Prefs                    mPrefs;
     private ScannerServiceInterface  mConnectionRemote;
     private ServiceConnection        mConnection;
-    private ServiceBroadcastReceiver mReceiver;
+    private ScannerEventReceiver     mReceiver;
     private int                      mGpsFixes;
     private int                      mGpsSats;
     private boolean                  mNeedsUpdate = false;
     private boolean                  mGeofenceHere = false;
 
-    private class ServiceBroadcastReceiver extends BroadcastReceiver {
+    private class ScannerEventReceiver {
         private boolean mReceiverIsRegistered;
 
+        private final EventBus.Subscriber<Boolean> mStateSubscriber = new EventBus.Subscriber<Boolean>() {
+            @Override
+            public void onEvent(Boolean running) {
+                if (!running) {
+                    mGpsFixes = 0;
+                    mGpsSats = 0;
+                }
+                updateUI();
+            }
+        };
+
+        private final EventBus.Subscriber<Boolean> mRequestSubscriber = new EventBus.Subscriber<Boolean>() {
+            @Override
+            public void onEvent(Boolean enable) {
+                if (mConnectionRemote != null) {
+                    try {
+                        if (enable) {
+                            Log.d(LOGTAG, "Enabling scanning");
+                            mConnectionRemote.startScanning();
+                        } else {
+                            Log.d(LOGTAG, "Disabling scanning");
+                            mConnectionRemote.stopScanning();
+                        }
+                    } catch (RemoteException e) {
+                        Log.e(LOGTAG, "", e);
+                    }
+                }
+                updateUI();
+            }
+        };
+
+        private final EventBus.Subscriber<GPSScanner.SatelliteStatus> mStatusSubscriber =
+                new EventBus.Subscriber<GPSScanner.SatelliteStatus>() {
+            @Override
+            public void onEvent(GPSScanner.SatelliteStatus status) {
+                mGpsFixes = status.fixes;
+                mGpsSats = status.satellites;
+                updateUI();
+            }
+        };
+
+        private final EventBus.Subscriber<Location> mLocationSubscriber = new EventBus.Subscriber<Location>() {
+            @Override
+            public void onEvent(Location location) {
+                updateUI();
+            }
+        };
+
         public void register() {
             if (!mReceiverIsRegistered) {
-                LocalBroadcastManager.getInstance(MainActivity.this).registerReceiver(this,
-                        new IntentFilter(ScannerService.MESSAGE_TOPIC));
+                Looper looper = Looper.getMainLooper();
+                Scanner.STATE.subscribe(mStateSubscriber, looper);
+                Scanner.REQUESTS.subscribe(mRequestSubscriber, looper);
+                GPSScanner.STATUS.subscribe(mStatusSubscriber, looper);
+                GPSScanner.LOCATION.subscribe(mLocationSubscriber, looper);
                 mReceiverIsRegistered = true;
             }
         }
 
         public void unregister() {
             if (mReceiverIsRegistered) {
-                LocalBroadcastManager.getInstance(MainActivity.this).unregisterReceiver(this);
+                Scanner.STATE.unsubscribe(mStateSubscriber);
+                Scanner.REQUESTS.unsubscribe(mRequestSubscriber);
+                GPSScanner.STATUS.unsubscribe(mStatusSubscriber);
+                GPSScanner.LOCATION.unsubscribe(mLocationSubscriber);
                 mReceiverIsRegistered = false;
             }
         }
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            if (action.equals(ScannerService.MESSAGE_TOPIC)) {
-
-                String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-
-                if (subject.equals("Scanner") ||
-                        subject.equals(GPSScanner.GPS_SCANNER_EXTRA_SUBJECT)) {
-                    if (intent.hasExtra("fixes")) {
-                        mGpsFixes = intent.getIntExtra("fixes", 0);
-                        mGpsSats = intent.getIntExtra("sats",0);
-                    }
-                    else if (intent.hasExtra("enable")) {
-                        int enable = intent.getIntExtra("enable", -1);
-
-                        if (mConnectionRemote != null) {
-                            try {
-                                if (enable == 1) {
-                                  Log.d(LOGTAG, "Enabling scanning");
-                                    mConnectionRemote.startScanning();
-                                } else if (enable == 0) {
-                                  Log.d(LOGTAG, "Disabling scanning");
-                                    mConnectionRemote.stopScanning();
-                                }
-                            } catch (RemoteException e) {
-                              Log.e(LOGTAG, "", e);
-                            }
-                        }
-                    }
-
-                    updateUI();
-                    Log.d(LOGTAG, "Received a scanner intent...");
-                    return;
-                }
-                if (subject.equals("WifiScanner")||subject.equals("GPSScanner")||subject.equals("CellScanner")) {
-                    // We know and expect those to appear - they can be safely ignored.
-                    return;
-                }
-                Log.e(LOGTAG, "", new IllegalArgumentException("Unknown scanner message: " + subject));
-                return;
-            }
-        }
     }
 
     @Override
@@ -169,7 +177,7 @@ public final class MainActivity extends FragmentActivity {
     protected void onStart() {
         super.onStart();
 
-        mReceiver = new ServiceBroadcastReceiver();
+        mReceiver = new ScannerEventReceiver();
         mReceiver.register();
         mPrefs = new Prefs(this);
         mConnection = new ServiceConnection() {
@@ -2,10 +2,7 @@ package org.mozilla.mozstumbler;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
@@ -13,7 +10,7 @@ import android.net.wifi.ScanResult;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -65,14 +62,46 @@ public final class MapActivity extends Activity {
     private AccuracyCircleOverlay mAccuracyOverlay;
     private ItemizedOverlay<OverlayItem> mPointOverlay;
 
-    private ReporterBroadcastReceiver mReceiver;
+    private ScanResultsReceiver mReceiver;
 
     private List<ScanResult> mWifiData;
     private List<CellInfo> mCellData;
 
-    private class ReporterBroadcastReceiver extends BroadcastReceiver {
+    private class ScanResultsReceiver {
         private boolean mDone;
 
+        private final EventBus.Subscriber<List<ScanResult>> mWifiSubscriber =
+                new EventBus.Subscriber<List<ScanResult>>() {
+            @Override
+            public void onEvent(List<ScanResult> results) {
+                if (!mDone) {
+                    mWifiData = results;
+                    locate();
+                }
+            }
+        };
+
+        private final EventBus.Subscriber<List<CellInfo>> mCellSubscriber =
+                new EventBus.Subscriber<List<CellInfo>>() {
+            @Override
+            public void onEvent(List<CellInfo> cells) {
+                if (!mDone && !cells.isEmpty()) {
+                    mCellData = cells;
+                    locate();
+                }
+            }
+        };
+
+        public void register() {
+            WifiScanner.SCAN_RESULTS.subscribe(mWifiSubscriber, Looper.getMainLooper());
+            CellScanner.CELLS.subscribe(mCellSubscriber, Looper.getMainLooper());
+        }
+
+        public void unregister() {
+            WifiScanner.SCAN_RESULTS.unsubscribe(mWifiSubscriber);
+            CellScanner.CELLS.unsubscribe(mCellSubscriber);
+        }
+
         public void reset()
         {
             mMap.getOverlays().remove(mAccuracyOverlay);
@@ -80,27 +109,7 @@ public final class MapActivity extends Activity {
             mDone = false;
         }
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (mDone) {
-                return;
-            }
-
-            String action = intent.getAction();
-            if (!action.equals(ScannerService.MESSAGE_TOPIC)) {
-                Log.e(LOGTAG, "Received an unknown intent: " + action);
-                return;
-            }
-
-            String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-            if (WifiScanner.WIFI_SCANNER_EXTRA_SUBJECT.equals(subject)) {
-                mWifiData = intent.getParcelableArrayListExtra(WifiScanner.WIFI_SCANNER_ARG_SCAN_RESULTS);
-            } else if (CellScanner.CELL_SCANNER_EXTRA_SUBJECT.equals(subject)) {
-                mCellData = intent.getParcelableArrayListExtra(CellScanner.CELL_SCANNER_ARG_CELLS);
-            } else {
-                return;
-            }
-
+        private void locate() {
             new GetLocationAndMapItTask().execute("");
             mDone = true;
         }
@@ -122,9 +131,8 @@ public final class MapActivity extends Activity {
         TilesOverlay coverageTilesOverlay = CoverageTilesOverlay(this);
         mMap.getOverlays().add(coverageTilesOverlay);
 
-        mReceiver = new ReporterBroadcastReceiver();
-        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver,
-                new IntentFilter(ScannerService.MESSAGE_TOPIC));
+        mReceiver = new ScanResultsReceiver();
+        mReceiver.register();
 
         mMap.getController().setZoom(2);
 
@@ -250,10 +258,7 @@ public final class MapActivity extends Activity {
     protected void onStart() {
         super.onStart();
 
-        Intent i = new Intent(ScannerService.MESSAGE_TOPIC);
-        i.putExtra(Intent.EXTRA_SUBJECT, "Scanner");
-        i.putExtra("enable", 1);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+        Scanner.REQUESTS.publish(Boolean.TRUE);
         Log.d(LOGTAG, "onStart");
     }
 
@@ -265,7 +270,7 @@ public final class MapActivity extends Activity {
         mMap.getTileProvider().clearTileCache();
         BitmapPool.getInstance().clearBitmapPool();
         if (mReceiver != null) {
-            LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+            mReceiver.unregister();
             mReceiver = null;
         }
     }
@@ -0,0 +1,119 @@
+package org.mozilla.mozstumbler;
+
+import android.location.Location;
+
+/**
+ * Tells whether the device is moving or stationary, from the displacement between GPS fixes
+ * and the number of new access points seen by the Wi-Fi scans.
+ *
+ * The device becomes stationary once the fixes stay within STATIONARY_RADIUS of an anchor fix
+ * for STATIONARY_TIME, without a Wi-Fi scan finding many new access points in the meantime.
+ * It is moving again as soon as a fix leaves the radius, the speed is not negligible, or
+ * a Wi-Fi scan finds many new access points.
+ *
+ * Not thread safe, used on the main thread.
+ */
+final class MotionDetector {
+    static final int STATE_MOVING = 0;
+    static final int STATE_STATIONARY = 1;
+
+    private static final float STATIONARY_RADIUS = 20; // m
+    private static final long STATIONARY_TIME = 60 * 1000; // ms
+    private static final float MOVING_SPEED = 1; // m/s
+    private static final int MOVING_NEW_APS = 4;
+
+    private int mState = STATE_MOVING;
+    private long mStateStart;
+    private final long[] mTimeInState = new long[2];
+
+    private Location mAnchor;
+    private long mAnchorTime;
+
+    void start(long now) {
+        mState = STATE_MOVING;
+        mStateStart = now;
+        mTimeInState[STATE_MOVING] = 0;
+        mTimeInState[STATE_STATIONARY] = 0;
+        mAnchor = null;
+    }
+
+    void stop(long now) {
+        mTimeInState[mState] += now - mStateStart;
+        mStateStart = now;
+        mAnchor = null;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * @return true if the state changed
+     */
+    boolean onLocation(Location location, long now) {
+        if (mAnchor == null) {
+            setAnchor(location, now);
+            return false;
+        }
+
+        float radius = STATIONARY_RADIUS;
+        if (location.hasAccuracy()) {
+            radius = Math.max(radius, location.getAccuracy());
+        }
+        if (location.distanceTo(mAnchor) > radius
+                || (location.hasSpeed() && location.getSpeed() > MOVING_SPEED)) {
+            setAnchor(location, now);
+            return setState(STATE_MOVING, now);
+        }
+        return onTick(now);
+    }
+
+    /**
+     * @param newAPs the number of access points the previous scan did not see
+     * @return true if the state changed
+     */
+    boolean onWifiScan(int newAPs, long now) {
+        if (newAPs < MOVING_NEW_APS) {
+            return false;
+        }
+        mAnchorTime = now;
+        return setState(STATE_MOVING, now);
+    }
+
+    /**
+     * Called periodically, since the fixes may stop when the location does not change.
+     *
+     * @return true if the state changed
+     */
+    boolean onTick(long now) {
+        if (mState == STATE_MOVING && mAnchor != null && now - mAnchorTime >= STATIONARY_TIME) {
+            return setState(STATE_STATIONARY, now);
+        }
+        return false;
+    }
+
+    long getTimeInState(int state, long now) {
+        return state == mState ? mTimeInState[state] + now - mStateStart : mTimeInState[state];
+    }
+
+    private void setAnchor(Location location, long now) {
+        mAnchor = location;
+        mAnchorTime = now;
+    }
+
+    private boolean setState(int state, long now) {
+        if (state == mState) {
+            return false;
+        }
+        mTimeInState[mState] += now - mStateStart;
+        mStateStart = now;
+        mState = state;
+        return true;
+    }
+
+    String toString(long now) {
+        return (mState == STATE_STATIONARY ? "stationary" : "moving")
+                + ", time moving: " + getTimeInState(STATE_MOVING, now) / 1000 + " s"
+                + ", time stationary: " + getTimeInState(STATE_STATIONARY, now) / 1000 + " s";
+    }
+}
@@ -1,23 +1,20 @@
 package org.mozilla.mozstumbler;
 
-import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
 import android.net.wifi.ScanResult;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.cellscanner.CellInfo;
 import org.mozilla.mozstumbler.cellscanner.CellScanner;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.mozilla.mozstumbler.provider.ReportCodec;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -25,12 +22,33 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mozilla.mozstumbler.provider.DatabaseContract.*;
 
-final class Reporter extends BroadcastReceiver {
+/**
+ * Collects scanner results into observations and stores them.
+ *
+ * Scanner events are received on the publishing threads and handed over to a background thread,
+ * which owns all the collected data and does the database writes.
+ */
+final class Reporter {
     private static final String LOGTAG          = Reporter.class.getName();
 
+    private static final int MSG_WIFI = 1;
+    private static final int MSG_CELLS = 2;
+    private static final int MSG_LOCATION = 3;
+    private static final int MSG_FLUSH = 4;
+    private static final int MSG_INSERT_PENDING = 5;
+    private static final int MSG_SHUTDOWN = 6;
+
+    /**
+     * The maximum number of scan results waiting for the background thread.
+     * Wifi results received above it are dropped. Cells and locations are always queued:
+     * they are only published on change, so a dropped one would never be corrected.
+     */
+    private static final int MAX_QUEUED_RESULTS = 32;
+
     /**
      * The maximum time of observation
      */
@@ -46,20 +64,85 @@ final class Reporter extends BroadcastReceiver {
      */
     private static final int CELLS_COUNT_WATERMARK = 50;
 
+    /**
+     * The maximum number of Wi-Fi access points kept while waiting for a location
+     */
+    private static final int WIFI_WINDOW_CAPACITY = 4 * WIFI_COUNT_WATERMARK;
+
+    /**
+     * Observations are written to the database in batches of this size...
+     */
+    private static final int INSERT_BATCH_SIZE = 20;
+
+    /**
+     * ...or after this delay, whichever comes first
+     */
+    private static final long INSERT_MAX_DELAY = 10 * 1000; //ms
+
     private final Context       mContext;
     private final ContentResolver mContentResolver;
     private final int             mPhoneType;
 
     private Location            mGpsPosition;
-    private final Map<String, ScanResult> mWifiData = new HashMap<String, ScanResult>();
+    private final WifiAggregator mWifiData = new WifiAggregator(WIFI_WINDOW_CAPACITY);
     private final Map<String, CellInfo> mCellData = new HashMap<String, CellInfo>();
+    // The cell scanner only publishes changes, these are the cells seen at the moment
+    private List<CellInfo> mCurrentCells = Collections.<CellInfo>emptyList();
+    private final ReportCodec.BlobWriter mCellWriter = new ReportCodec.BlobWriter(
+            CELLS_COUNT_WATERMARK * ReportCodec.CELL_RECORD_SIZE);
+    private final ReportCodec.BlobWriter mWifiWriter = new ReportCodec.BlobWriter(
+            WIFI_COUNT_WATERMARK * ReportCodec.WIFI_RECORD_SIZE_HINT);
+    private final ArrayList<ContentValues> mPendingReports = new ArrayList<ContentValues>(INSERT_BATCH_SIZE);
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final AtomicInteger mQueuedResults = new AtomicInteger();
+    private final AtomicInteger mDroppedResults = new AtomicInteger();
+
+    private final EventBus.Subscriber<List<ScanResult>> mWifiSubscriber =
+            new EventBus.Subscriber<List<ScanResult>>() {
+        @Override
+        public void onEvent(List<ScanResult> results) {
+            queueResults(MSG_WIFI, results);
+        }
+    };
+
+    private final EventBus.Subscriber<List<CellInfo>> mCellSubscriber =
+            new EventBus.Subscriber<List<CellInfo>>() {
+        @Override
+        public void onEvent(List<CellInfo> cells) {
+            mHandler.obtainMessage(MSG_CELLS, cells).sendToTarget();
+        }
+    };
+
+    private final EventBus.Subscriber<Location> mLocationSubscriber =
+            new EventBus.Subscriber<Location>() {
+        @Override
+        public void onEvent(Location location) {
+            mHandler.obtainMessage(MSG_LOCATION, location).sendToTarget();
+        }
+    };
+
+    // A satellite status change ends the current observation, like a lost location
+    private final EventBus.Subscriber<GPSScanner.SatelliteStatus> mStatusSubscriber =
+            new EventBus.Subscriber<GPSScanner.SatelliteStatus>() {
+        @Override
+        public void onEvent(GPSScanner.SatelliteStatus status) {
+            mHandler.obtainMessage(MSG_LOCATION, null).sendToTarget();
+        }
+    };
 
     Reporter(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
         resetData();
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(this,
-                new IntentFilter(ScannerService.MESSAGE_TOPIC));
+        mThread = new HandlerThread("Reporter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new ReporterHandler());
+        WifiScanner.SCAN_RESULTS.subscribe(mWifiSubscriber, null);
+        CellScanner.CELLS.subscribe(mCellSubscriber, null);
+        GPSScanner.LOCATION.subscribe(mLocationSubscriber, null);
+        GPSScanner.STATUS.subscribe(mStatusSubscriber, null);
         TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
         mPhoneType = tm.getPhoneType();
     }
@@ -67,64 +150,117 @@ final class Reporter extends BroadcastReceiver {
     private void resetData() {
         mWifiData.clear();
         mCellData.clear();
+        mCurrentCells = Collections.emptyList();
         mGpsPosition = null;
     }
 
+    /**
+     * Stores the current observation and everything pending, after the events already queued.
+     */
     void flush() {
-        reportCollectedLocation();
+        mHandler.sendEmptyMessage(MSG_FLUSH);
     }
 
     void shutdown() {
         Log.d(LOGTAG, "shutdown");
-        flush();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(this);
+        WifiScanner.SCAN_RESULTS.unsubscribe(mWifiSubscriber);
+        CellScanner.CELLS.unsubscribe(mCellSubscriber);
+        GPSScanner.LOCATION.unsubscribe(mLocationSubscriber);
+        GPSScanner.STATUS.unsubscribe(mStatusSubscriber);
+        // Flushes and stops the thread once the queued events are processed
+        mHandler.sendEmptyMessage(MSG_SHUTDOWN);
     }
 
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
-
-        if (!ScannerService.MESSAGE_TOPIC.equals(action)) {
-            Log.e(LOGTAG, "Received an unknown intent");
+    private void queueResults(int what, List<?> results) {
+        // Called from the publishing threads
+        if (mQueuedResults.incrementAndGet() > MAX_QUEUED_RESULTS) {
+            mQueuedResults.decrementAndGet();
+            Log.w(LOGTAG, "Reporter is behind, dropped scan results: " + mDroppedResults.incrementAndGet());
             return;
         }
+        mHandler.obtainMessage(what, results).sendToTarget();
+    }
 
-        long time = intent.getLongExtra("time", System.currentTimeMillis());
-        String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-
-        if (mGpsPosition != null && Math.abs(time - mGpsPosition.getTime()) > REPORTER_WINDOW) {
-            reportCollectedLocation();
+    private class ReporterHandler implements Handler.Callback {
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_WIFI:
+                    mQueuedResults.decrementAndGet();
+                    handleWifiResults((List<ScanResult>) msg.obj);
+                    return true;
+                case MSG_CELLS:
+                    handleCellResults((List<CellInfo>) msg.obj);
+                    return true;
+                case MSG_LOCATION:
+                    handleLocation((Location) msg.obj);
+                    return true;
+                case MSG_FLUSH:
+                    reportCollectedLocation();
+                    insertPendingReports();
+                    return true;
+                case MSG_INSERT_PENDING:
+                    insertPendingReports();
+                    return true;
+                case MSG_SHUTDOWN:
+                    reportCollectedLocation();
+                    insertPendingReports();
+                    mThread.quit();
+                    return true;
+                default:
+                    return false;
+            }
         }
+    }
+
+    private void handleWifiResults(List<ScanResult> results) {
+        final long time = System.currentTimeMillis();
+        checkReportWindow(time);
+        putWifiResults(results, time);
+        checkWatermarks();
+    }
+
+    private void handleCellResults(List<CellInfo> cells) {
+        checkReportWindow(System.currentTimeMillis());
+        mCurrentCells = cells;
+        putCellResults(cells);
+        checkWatermarks();
+    }
 
-        if (WifiScanner.WIFI_SCANNER_EXTRA_SUBJECT.equals(subject)) {
-            List<ScanResult> results = intent.getParcelableArrayListExtra(WifiScanner.WIFI_SCANNER_ARG_SCAN_RESULTS);
-            putWifiResults(results);
-        } else if (CellScanner.CELL_SCANNER_EXTRA_SUBJECT.equals(subject)) {
-            List<CellInfo> results = intent.getParcelableArrayListExtra(CellScanner.CELL_SCANNER_ARG_CELLS);
-            putCellResults(results);
-        } else if (GPSScanner.GPS_SCANNER_EXTRA_SUBJECT.equals(subject)) {
+    private void handleLocation(Location location) {
+        checkReportWindow(System.currentTimeMillis());
+        reportCollectedLocation();
+        // Copied since its time is moved forward with each observation
+        mGpsPosition = location != null ? new Location(location) : null;
+        checkWatermarks();
+    }
+
+    private void checkReportWindow(long time) {
+        if (mGpsPosition != null && Math.abs(time - mGpsPosition.getTime()) > REPORTER_WINDOW) {
             reportCollectedLocation();
-            mGpsPosition = intent.getParcelableExtra(GPSScanner.GPS_SCANNER_ARG_LOCATION);
-        } else {
-            Log.d(LOGTAG, "Intent ignored with Subject: " + subject);
-            return; // Intent not aimed at the Reporter (it is possibly for UI instead)
         }
+    }
 
+    private void checkWatermarks() {
         if (mGpsPosition != null &&
                 (mWifiData.size() > WIFI_COUNT_WATERMARK || mCellData.size() > CELLS_COUNT_WATERMARK)) {
             reportCollectedLocation();
         }
     }
 
-    private void putWifiResults(List<ScanResult> results) {
+    private void putWifiResults(List<ScanResult> results, long time) {
         if (mGpsPosition == null) {
             return;
         }
-        for (ScanResult result : results) {
-            String key = result.BSSID;
-            if (!mWifiData.containsKey(key)) {
-                mWifiData.put(key, result);
+        for (int i = 0, size = results.size(); i < size; i++) {
+            final ScanResult result = results.get(i);
+            final long bssid = ReportCodec.bssidToLong(result.BSSID);
+            if (bssid < 0) {
+                Log.w(LOGTAG, "Skip wifi with unexpected BSSID: " + result.BSSID);
+                continue;
             }
+            mWifiData.put(bssid, result.frequency, result.level, result.SSID, result.capabilities, time);
         }
     }
 
@@ -145,9 +281,9 @@ final class Reporter extends BroadcastReceiver {
             return;
         }
 
+        // Still seen, even if they did not change since the last observation
+        putCellResults(mCurrentCells);
         Collection<CellInfo> cells = mCellData.values();
-        Collection<ScanResult> wifis = mWifiData.values();
-
 
         ContentValues values = new ContentValues(10);
         values.put(Reports.TIME, mGpsPosition.getTime());
@@ -172,37 +308,46 @@ final class Reporter extends BroadcastReceiver {
             values.put(Reports.RADIO, "");
         }
 
-        JSONArray cellJSON = new JSONArray();
+        mCellWriter.reset();
         for (CellInfo cell : cells) {
-            cellJSON.put(cell.toJSONObject());
-        }
-
-        values.put(Reports.CELL, cellJSON.toString());
-        values.put(Reports.CELL_COUNT, cellJSON.length());
-
-        JSONArray wifiJSON = new JSONArray();
-        for (ScanResult wifi : wifis) {
-            try {
-                JSONObject jsonItem = new JSONObject();
-                jsonItem.put("key", wifi.BSSID);
-                jsonItem.put("frequency", wifi.frequency);
-                jsonItem.put("signal", wifi.level);
-                if (!"<unknown ssid>".equals(wifi.SSID)) jsonItem.put("ssid", wifi.SSID);
-                jsonItem.put("capabilities", wifi.capabilities);
-                wifiJSON.put(jsonItem);
-            } catch (JSONException exc) {
-                Log.w(LOGTAG, "JSON exception while serializing wifi data: " + exc);
-            }
+            mCellWriter.putCell(cell);
+        }
+
+        values.put(Reports.CELL, mCellWriter.toByteArray());
+        values.put(Reports.CELL_COUNT, mCellWriter.count());
+
+        mWifiWriter.reset();
+        mWifiData.writeTo(mWifiWriter, mGpsPosition.getTime());
+        if (mWifiData.getDroppedCount() > 0) {
+            Log.w(LOGTAG, "Wifi window full, APs dropped: " + mWifiData.getDroppedCount());
         }
         mCellData.clear();
         mWifiData.clear();
-        values.put(Reports.WIFI, wifiJSON.toString());
-        values.put(Reports.WIFI_COUNT, wifiJSON.length());
+        values.put(Reports.WIFI, mWifiWriter.toByteArray());
+        values.put(Reports.WIFI_COUNT, mWifiWriter.count());
 
-        mContentResolver.insert(Reports.CONTENT_URI, values);
+        queueReport(values);
         if (mGpsPosition != null) {
             mGpsPosition.setTime(System.currentTimeMillis());
         }
     }
-}
 
+    private void queueReport(ContentValues values) {
+        mPendingReports.add(values);
+        if (mPendingReports.size() >= INSERT_BATCH_SIZE) {
+            insertPendingReports();
+        } else if (mPendingReports.size() == 1) {
+            mHandler.sendEmptyMessageDelayed(MSG_INSERT_PENDING, INSERT_MAX_DELAY);
+        }
+    }
+
+    private void insertPendingReports() {
+        mHandler.removeMessages(MSG_INSERT_PENDING);
+        if (mPendingReports.isEmpty()) {
+            return;
+        }
+        final ContentValues[] reports = mPendingReports.toArray(new ContentValues[mPendingReports.size()]);
+        mPendingReports.clear();
+        mContentResolver.bulkInsert(Reports.CONTENT_URI, reports);
+    }
+}
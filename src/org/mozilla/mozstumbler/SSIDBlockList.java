@@ -2,6 +2,15 @@ package org.mozilla.mozstumbler;
 
 import android.net.wifi.ScanResult;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Entries are literal strings, except for a few regex-style tokens:
+ * "\d" matches one digit, "\d{n}" n digits, a PREFIX_LIST entry ending with "$" must match
+ * the whole SSID, and so must a SUFFIX_LIST entry starting with "^".
+ * Both lists are compiled to tries, so an SSID is checked in one pass from each end.
+ */
 final class SSIDBlockList {
     private static final String[] PREFIX_LIST = {
         // Mobile devices
@@ -118,6 +127,9 @@ final class SSIDBlockList {
         "_nomap",
     };
 
+    private static final PatternTrie PREFIXES = new PatternTrie(PREFIX_LIST, false);
+    private static final PatternTrie SUFFIXES = new PatternTrie(SUFFIX_LIST, true);
+
     private SSIDBlockList() {
     }
 
@@ -127,18 +139,152 @@ final class SSIDBlockList {
             return true; // no SSID?
         }
 
-        for (String prefix : PREFIX_LIST) {
-            if (SSID.startsWith(prefix)) {
-                return true; // blocked!
+        if (PREFIXES.matches(SSID)) {
+            return true; // blocked!
+        }
+
+        if (SUFFIXES.matches(SSID)) {
+            return true; // blocked!
+        }
+
+        return false; // OK
+    }
+
+    /**
+     * Trie of patterns anchored at the start of the string, or at its end if reverse is set.
+     */
+    private static final class PatternTrie {
+        private static final int DIGIT = -1;
+
+        private static final class Node {
+            char[] chars = new char[0];
+            Node[] children = new Node[0];
+            Node digit;
+            // A pattern ends here
+            boolean match;
+            // An anchored pattern ends here, it matches only if the whole string was consumed
+            boolean matchAtEnd;
+        }
+
+        private final Node mRoot = new Node();
+        private final boolean mReverse;
+
+        PatternTrie(String[] patterns, boolean reverse) {
+            mReverse = reverse;
+            for (String pattern : patterns) {
+                add(pattern);
             }
         }
 
-        for (String suffix : SUFFIX_LIST) {
-            if (SSID.endsWith(suffix)) {
-                return true; // blocked!
+        boolean matches(String s) {
+            final int length = s.length();
+            return matches(mRoot, s, mReverse ? length - 1 : 0, length);
+        }
+
+        private boolean matches(Node node, String s, int position, int remaining) {
+            if (node.match) {
+                return true;
             }
+            if (remaining == 0) {
+                return node.matchAtEnd;
+            }
+
+            final char c = s.charAt(position);
+            final int next = mReverse ? position - 1 : position + 1;
+            final int i = Arrays.binarySearch(node.chars, c);
+            if (i >= 0 && matches(node.children[i], s, next, remaining - 1)) {
+                return true;
+            }
+            return node.digit != null && c >= '0' && c <= '9'
+                    && matches(node.digit, s, next, remaining - 1);
         }
 
-        return false; // OK
+        private void add(String pattern) {
+            final boolean anchored;
+            if (mReverse) {
+                anchored = pattern.startsWith("^");
+                if (anchored) pattern = pattern.substring(1);
+            } else {
+                anchored = pattern.endsWith("$") && !pattern.endsWith("\\$");
+                if (anchored) pattern = pattern.substring(0, pattern.length() - 1);
+            }
+
+            final int[] tokens = tokenize(pattern);
+            Node node = mRoot;
+            for (int i = 0; i < tokens.length; i++) {
+                node = child(node, tokens[mReverse ? tokens.length - 1 - i : i]);
+            }
+            if (anchored) {
+                node.matchAtEnd = true;
+            } else {
+                node.match = true;
+            }
+        }
+
+        private static Node child(Node node, int token) {
+            if (token == DIGIT) {
+                if (node.digit == null) {
+                    node.digit = new Node();
+                }
+                return node.digit;
+            }
+
+            final char c = (char) token;
+            int i = Arrays.binarySearch(node.chars, c);
+            if (i >= 0) {
+                return node.children[i];
+            }
+
+            i = -i - 1;
+            final int size = node.chars.length;
+            final char[] chars = new char[size + 1];
+            final Node[] children = new Node[size + 1];
+            System.arraycopy(node.chars, 0, chars, 0, i);
+            System.arraycopy(node.children, 0, children, 0, i);
+            System.arraycopy(node.chars, i, chars, i + 1, size - i);
+            System.arraycopy(node.children, i, children, i + 1, size - i);
+            chars[i] = c;
+            children[i] = new Node();
+            node.chars = chars;
+            node.children = children;
+            return children[i];
+        }
+
+        private static int[] tokenize(String pattern) {
+            final ArrayList<Integer> tokens = new ArrayList<Integer>(pattern.length());
+            int i = 0;
+            while (i < pattern.length()) {
+                char c = pattern.charAt(i++);
+                if (c != '\\' || i == pattern.length()) {
+                    tokens.add((int) c);
+                    continue;
+                }
+
+                c = pattern.charAt(i++);
+                if (c != 'd') {
+                    tokens.add((int) c); // escaped literal
+                    continue;
+                }
+
+                int count = 1;
+                if (i < pattern.length() && pattern.charAt(i) == '{') {
+                    final int end = pattern.indexOf('}', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Invalid pattern: " + pattern);
+                    }
+                    count = Integer.parseInt(pattern.substring(i + 1, end));
+                    i = end + 1;
+                }
+                for (int n = 0; n < count; n++) {
+                    tokens.add(DIGIT);
+                }
+            }
+
+            final int[] result = new int[tokens.size()];
+            for (int n = 0; n < result.length; n++) {
+                result[n] = tokens.get(n);
+            }
+            return result;
+        }
     }
 }
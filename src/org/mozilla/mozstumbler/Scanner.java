@@ -1,8 +1,6 @@
 package org.mozilla.mozstumbler;
 
 import android.content.Context;
-import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.cellscanner.CellScanner;
@@ -10,7 +8,16 @@ import org.mozilla.mozstumbler.cellscanner.CellScanner;
 class Scanner {
   private static final String LOGTAG = Scanner.class.getName();
 
-  private final Context  mContext;
+  /**
+   * Whether scanning is running, published when it starts and stops.
+   */
+  static final EventBus.Topic<Boolean> STATE = new EventBus.Topic<Boolean>("Scanner.STATE");
+
+  /**
+   * Requests from the UI to start (true) or stop (false) scanning.
+   */
+  static final EventBus.Topic<Boolean> REQUESTS = new EventBus.Topic<Boolean>("Scanner.REQUESTS");
+
   private boolean        mIsScanning;
 
   private GPSScanner     mGPSScanner;
@@ -18,7 +25,6 @@ class Scanner {
   private CellScanner    mCellScanner;
 
   Scanner(Context context) {
-    mContext = context;
     mGPSScanner  = new GPSScanner(context);
     mWifiScanner = new WifiScanner(context);
     mCellScanner = new CellScanner(context);
@@ -36,11 +42,7 @@ class Scanner {
 
     mIsScanning = true;
 
-    // FIXME convey "start" event here?
-    // for now all we want is to update the UI anyway
-    Intent startIntent = new Intent(ScannerService.MESSAGE_TOPIC);
-    startIntent.putExtra(Intent.EXTRA_SUBJECT, "Scanner");
-    LocalBroadcastManager.getInstance(mContext).sendBroadcast(startIntent);
+    STATE.publish(Boolean.TRUE);
   }
 
   void stopScanning() {
@@ -56,12 +58,7 @@ class Scanner {
 
     mIsScanning = false;
 
-    // FIXME convey "stop" event here?
-    // for now all we want is to update the UI anyway
-    Intent stopIntent = new Intent(ScannerService.MESSAGE_TOPIC);
-    stopIntent.putExtra(Intent.EXTRA_SUBJECT, "Scanner");
-    stopIntent.putExtra("fixes", 0);
-    LocalBroadcastManager.getInstance(mContext).sendBroadcast(stopIntent);
+    STATE.publish(Boolean.FALSE);
   }
 
   boolean isScanning() {
@@ -80,6 +77,10 @@ class Scanner {
       return mWifiScanner.getStatus();
   }
 
+  int getWifiScanInterval() {
+      return mWifiScanner.getScanInterval();
+  }
+
   int getCellInfoCount() {
      return mCellScanner.getCellInfoCount();
   }
@@ -88,6 +89,14 @@ class Scanner {
      return mCellScanner.getCurrentCellInfoCount();
   }
 
+  int getServiceModeCacheHits() {
+     return mCellScanner.getServiceModeCacheHits();
+  }
+
+  int getServiceModeCacheMisses() {
+     return mCellScanner.getServiceModeCacheMisses();
+  }
+
   int getLocationCount() {
      return mGPSScanner.getLocationCount();
   }
@@ -100,6 +109,14 @@ class Scanner {
      return mGPSScanner.getLongitude();
   }
 
+  long getStationaryTime() {
+     return mGPSScanner.getStationaryTime();
+  }
+
+  long getMovingTime() {
+     return mGPSScanner.getMovingTime();
+  }
+
   void checkPrefs() {
       mGPSScanner.checkPrefs();
   }
@@ -83,11 +83,26 @@ public final class ScannerService extends Service {
             return mScanner.getLongitude();
         }
 
+        @Override
+        public long getStationaryTime() throws RemoteException {
+            return mScanner.getStationaryTime();
+        }
+
+        @Override
+        public long getMovingTime() throws RemoteException {
+            return mScanner.getMovingTime();
+        }
+
         @Override
         public int getWifiStatus() throws RemoteException {
             return mScanner.getWifiStatus();
         }
 
+        @Override
+        public int getWifiScanInterval() throws RemoteException {
+            return mScanner.getWifiScanInterval();
+        }
+
         @Override
         public int getAPCount() throws RemoteException {
             return mScanner.getAPCount();
@@ -108,6 +123,16 @@ public final class ScannerService extends Service {
             return mScanner.getCurrentCellInfoCount();
         }
 
+        @Override
+        public int getServiceModeCacheHits() throws RemoteException {
+            return mScanner.getServiceModeCacheHits();
+        }
+
+        @Override
+        public int getServiceModeCacheMisses() throws RemoteException {
+            return mScanner.getServiceModeCacheMisses();
+        }
+
         @Override
         public boolean isGeofenced () throws RemoteException {
             return mScanner.isGeofenced();
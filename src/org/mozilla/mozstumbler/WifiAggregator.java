@@ -0,0 +1,132 @@
+package org.mozilla.mozstumbler;
+
+import org.mozilla.mozstumbler.provider.ReportCodec;
+
+import java.util.Arrays;
+
+/**
+ * The access points seen while the Reporter waits for the next location, keyed by BSSID.
+ *
+ * Repeated sightings of an AP keep its strongest signal, which is the one reported, along with
+ * the number of sightings and the time of the last one.
+ * Everything is kept in preallocated primitive arrays, so a window never holds on to
+ * ScanResult objects and its memory is bounded by the capacity.
+ *
+ * Not thread-safe.
+ */
+final class WifiAggregator {
+    private static final long EMPTY = -1L;
+
+    private final int mCapacity;
+
+    // BSSID -> slot, open addressing
+    private final long[] mKeys;
+    private final int[] mSlots;
+    private final int mMask;
+
+    // Per-slot values, in the order the APs were first seen
+    private final long[] mBssids;
+    private final int[] mFrequencies;
+    private final String[] mSsids;
+    private final String[] mCapabilities;
+    private final int[] mMaxSignals;
+    private final int[] mCounts;
+    private final long[] mLastSeen;
+
+    private int mSize;
+    private int mDropped;
+
+    WifiAggregator(int capacity) {
+        mCapacity = capacity;
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mKeys = new long[tableSize];
+        mSlots = new int[tableSize];
+        mMask = tableSize - 1;
+        Arrays.fill(mKeys, EMPTY);
+
+        mBssids = new long[capacity];
+        mFrequencies = new int[capacity];
+        mSsids = new String[capacity];
+        mCapabilities = new String[capacity];
+        mMaxSignals = new int[capacity];
+        mCounts = new int[capacity];
+        mLastSeen = new long[capacity];
+    }
+
+    /**
+     * Records a sighting of an access point.
+     *
+     * @return false if the AP is new and the window is full
+     */
+    boolean put(long bssid, int frequency, int signal, String ssid, String capabilities, long time) {
+        int i = (int) LongHashSet.hash(bssid) & mMask;
+        long key;
+        while ((key = mKeys[i]) != EMPTY) {
+            if (key == bssid) {
+                update(mSlots[i], frequency, signal, ssid, capabilities, time);
+                return true;
+            }
+            i = (i + 1) & mMask;
+        }
+
+        if (mSize == mCapacity) {
+            mDropped += 1;
+            return false;
+        }
+
+        final int slot = mSize++;
+        mKeys[i] = bssid;
+        mSlots[i] = slot;
+        mBssids[slot] = bssid;
+        mMaxSignals[slot] = signal;
+        mCounts[slot] = 0;
+        update(slot, frequency, signal, ssid, capabilities, time);
+        return true;
+    }
+
+    private void update(int slot, int frequency, int signal, String ssid, String capabilities, long time) {
+        if (signal >= mMaxSignals[slot]) {
+            mMaxSignals[slot] = signal;
+            mFrequencies[slot] = frequency;
+        }
+        mSsids[slot] = ssid;
+        mCapabilities[slot] = capabilities;
+        mCounts[slot] += 1;
+        mLastSeen[slot] = time;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Number of APs ignored because the window was full.
+     */
+    int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Writes one record per AP, with its strongest signal and the age of its last sighting.
+     *
+     * @param time the observation time, the ages are relative to it
+     */
+    void writeTo(ReportCodec.BlobWriter writer, long time) {
+        for (int slot = 0; slot < mSize; slot++) {
+            writer.putWifi(mBssids[slot], mFrequencies[slot], mMaxSignals[slot],
+                    (int) (time - mLastSeen[slot]), mCounts[slot],
+                    mSsids[slot], mCapabilities[slot]);
+        }
+    }
+
+    void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mSsids, 0, mSize, null);
+        Arrays.fill(mCapabilities, 0, mSize, null);
+        mSize = 0;
+        mDropped = 0;
+    }
+}
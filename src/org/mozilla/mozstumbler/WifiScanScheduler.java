@@ -0,0 +1,201 @@
+package org.mozilla.mozstumbler;
+
+import android.location.Location;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the interval between Wi-Fi scans.
+ *
+ * The interval aims at a scan every SCAN_DISTANCE meters at the current GPS speed, and is then
+ * stretched while the scans see no new access points, shortened while most of them are new,
+ * and stretched on low battery. Results arriving after the interval has elapsed start the next
+ * scan at once, so fast travel gets back-to-back scans.
+ *
+ * Not thread safe, used on the WifiScanner thread.
+ */
+final class WifiScanScheduler {
+    static final long MIN_INTERVAL = 1000; // ms
+    static final long MAX_INTERVAL = 30 * 1000; // ms
+
+    /**
+     * The Reporter drops Wi-Fi results without a location, scans are only kept for the UI
+     */
+    private static final long NO_LOCATION_INTERVAL = 5000; // ms
+    private static final long NO_SPEED_INTERVAL = 2000; // ms
+    private static final long STATIONARY_INTERVAL = 15 * 1000; // ms
+
+    private static final float STATIONARY_SPEED = 0.5f; // m/s
+    private static final float SCAN_DISTANCE = 15; // m
+
+    private static final float MIN_YIELD_FACTOR = 0.5f;
+    private static final float MAX_YIELD_FACTOR = 4;
+    private static final float EMPTY_YIELD_STEP = 1.5f;
+    private static final float HIGH_YIELD_RATIO = 0.5f;
+
+    private static final int LOW_BATTERY_LEVEL = 30; // %
+    private static final int CRITICAL_BATTERY_LEVEL = 15; // %
+
+    static final String REASON_NO_LOCATION = "no location";
+    static final String REASON_NO_SPEED = "no speed";
+    static final String REASON_STATIONARY = "stationary";
+    static final String REASON_MOVING = "moving";
+
+    private boolean mHasLocation;
+    private float mSpeed = -1;
+    private float mYieldFactor = 1;
+    private int mBatteryLevel = 100;
+    private boolean mCharging = true;
+
+    private long[] mLastBSSIDs = new long[0];
+
+    private long mInterval = NO_LOCATION_INTERVAL;
+    private String mReason = REASON_NO_LOCATION;
+
+    // Metrics
+    private int mScanCount;
+    private int mImmediateScanCount;
+    private int mScanResultsCount;
+    private int mNewAPsCount;
+    private long mIntervalTotal;
+
+    void setLocation(Location location) {
+        mHasLocation = location != null;
+        mSpeed = (location != null && location.hasSpeed()) ? location.getSpeed() : -1;
+        update();
+    }
+
+    void setBattery(int level, boolean charging) {
+        mBatteryLevel = level;
+        mCharging = charging;
+        update();
+    }
+
+    /**
+     * @param bssids the access points of the scan, the first count entries are reordered
+     * @return the number of access points the previous scan did not see
+     */
+    int onScanResults(long[] bssids, int count) {
+        Arrays.sort(bssids, 0, count);
+        int newAPs = 0;
+        for (int i = 0; i < count; i++) {
+            if (Arrays.binarySearch(mLastBSSIDs, bssids[i]) < 0) {
+                newAPs++;
+            }
+        }
+        if (mLastBSSIDs.length != count) {
+            mLastBSSIDs = new long[count];
+        }
+        System.arraycopy(bssids, 0, mLastBSSIDs, 0, count);
+
+        if (newAPs == 0) {
+            mYieldFactor = Math.min(mYieldFactor * EMPTY_YIELD_STEP, MAX_YIELD_FACTOR);
+        } else if (newAPs >= count * HIGH_YIELD_RATIO) {
+            mYieldFactor = MIN_YIELD_FACTOR;
+        } else {
+            mYieldFactor = 1;
+        }
+        mScanResultsCount++;
+        mNewAPsCount += newAPs;
+        update();
+        return newAPs;
+    }
+
+    void onScanStarted(long sinceLastScan) {
+        mScanCount++;
+        if (mScanCount > 1) {
+            mIntervalTotal += sinceLastScan;
+        }
+    }
+
+    /**
+     * @return the delay before the next scan, 0 if it is already due
+     */
+    long getNextScanDelay(long sinceLastScan) {
+        final long delay = mInterval - sinceLastScan;
+        if (delay <= 0) {
+            mImmediateScanCount++;
+            return 0;
+        }
+        return delay;
+    }
+
+    long getInterval() {
+        return mInterval;
+    }
+
+    String getReason() {
+        return mReason;
+    }
+
+    int getScanCount() {
+        return mScanCount;
+    }
+
+    /**
+     * @return the number of scans started without delay, as they were already due
+     */
+    int getImmediateScanCount() {
+        return mImmediateScanCount;
+    }
+
+    /**
+     * @return the average number of access points per scan not seen by the previous scan
+     */
+    float getAverageNewAPs() {
+        return mScanResultsCount == 0 ? 0 : (float) mNewAPsCount / mScanResultsCount;
+    }
+
+    long getAverageInterval() {
+        return mScanCount < 2 ? 0 : mIntervalTotal / (mScanCount - 1);
+    }
+
+    void resetMetrics() {
+        mScanCount = 0;
+        mImmediateScanCount = 0;
+        mScanResultsCount = 0;
+        mNewAPsCount = 0;
+        mIntervalTotal = 0;
+    }
+
+    private void update() {
+        long interval;
+        if (!mHasLocation) {
+            interval = NO_LOCATION_INTERVAL;
+            mReason = REASON_NO_LOCATION;
+        } else if (mSpeed < 0) {
+            interval = NO_SPEED_INTERVAL;
+            mReason = REASON_NO_SPEED;
+        } else if (mSpeed < STATIONARY_SPEED) {
+            interval = STATIONARY_INTERVAL;
+            mReason = REASON_STATIONARY;
+        } else {
+            interval = (long) (SCAN_DISTANCE * 1000 / mSpeed);
+            mReason = REASON_MOVING;
+        }
+
+        interval = (long) (interval * mYieldFactor);
+
+        if (!mCharging) {
+            if (mBatteryLevel <= CRITICAL_BATTERY_LEVEL) {
+                interval *= 4;
+            } else if (mBatteryLevel <= LOW_BATTERY_LEVEL) {
+                interval *= 2;
+            }
+        }
+
+        mInterval = Math.max(MIN_INTERVAL, Math.min(interval, MAX_INTERVAL));
+    }
+
+    @Override
+    public String toString() {
+        return "interval: " + mInterval + " ms (" + mReason
+                + "), speed: " + mSpeed
+                + ", yield factor: " + mYieldFactor
+                + ", battery: " + mBatteryLevel + (mCharging ? "% charging" : "%")
+                + ", scans: " + mScanCount
+                + ", immediate: " + mImmediateScanCount
+                + ", average interval: " + getAverageInterval()
+                + ", average new APs: " + getAverageNewAPs();
+    }
+}
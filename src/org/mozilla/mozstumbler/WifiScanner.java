@@ -4,24 +4,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.location.Location;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
+import android.os.BatteryManager;
 import android.os.Handler;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.preferences.Prefs;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class WifiScanner extends BroadcastReceiver {
-    public static final String WIFI_SCANNER_EXTRA_SUBJECT = "WifiScanner";
-    public static final String WIFI_SCANNER_ARG_SCAN_RESULTS = "org.mozilla.mozstumbler.WifiScanner.scan_results";
+    /**
+     * Results of each scan, without the blocked access points. Never empty.
+     */
+    public static final EventBus.Topic<List<ScanResult>> SCAN_RESULTS =
+            new EventBus.Topic<List<ScanResult>>("WifiScanner.SCAN_RESULTS");
+
+    /**
+     * Number of access points of each scan that the previous scan did not see.
+     */
+    public static final EventBus.Topic<Integer> NEW_APS =
+            new EventBus.Topic<Integer>("WifiScanner.NEW_APS");
 
     public static final int STATUS_IDLE = 0;
     public static final int STATUS_ACTIVE = 1;
@@ -29,16 +38,29 @@ public class WifiScanner extends BroadcastReceiver {
 
     private static final String LOGTAG = Scanner.class.getName();
     private static final boolean DBG = BuildConfig.DEBUG;
-    private static final long WIFI_MIN_UPDATE_TIME = 1000; // milliseconds
+    private static final int APS_EXACT_COUNT_LIMIT = 1 << 16;
 
     private boolean mStarted;
     private boolean mWifiEnabled;
     private final Context mContext;
     private WifiLock mWifiLock;
-    private final Set<String> mAPs = Collections.synchronizedSet(new HashSet<String>());
+    private final LongHashSet mAPs = new LongHashSet(APS_EXACT_COUNT_LIMIT);
     private AtomicInteger mVisibleAPs = new AtomicInteger();
 
     private Handler mHandler;
+    private BSSIDBlockList.RulesObserver mBlockListObserver;
+
+    private final WifiScanScheduler mScheduler = new WifiScanScheduler();
+    private long mLastScanTime;
+    private long[] mScanBSSIDs = new long[64];
+
+    private final EventBus.Subscriber<Location> mLocationSubscriber = new EventBus.Subscriber<Location>() {
+        @Override
+        public void onEvent(Location location) {
+            mScheduler.setLocation(location);
+            scheduleNextScan();
+        }
+    };
 
     WifiScanner(Context c) {
         mContext = c;
@@ -50,9 +72,16 @@ public class WifiScanner extends BroadcastReceiver {
         }
         mStarted = true;
 
+        // Watching first, so that a change during the initial load is not missed
+        mBlockListObserver = new BSSIDBlockList.RulesObserver(mContext);
+        mBlockListObserver.startWatching();
+        BSSIDBlockList.loadRulesInBackground(BSSIDBlockList.getRulesFile(mContext));
+
         boolean scanAlways = new Prefs(mContext).getWifiScanAlways();
 
         mHandler = new Handler();
+        mScheduler.resetMetrics();
+        GPSScanner.LOCATION.subscribe(mLocationSubscriber, mHandler.getLooper());
         if (scanAlways || getWifiManager().isWifiEnabled()) {
             mWifiEnabled = true;
             activatePeriodicScan();
@@ -61,6 +90,7 @@ public class WifiScanner extends BroadcastReceiver {
         }
 
         IntentFilter i = new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+        i.addAction(Intent.ACTION_BATTERY_CHANGED);
         if (!scanAlways) i.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
         mContext.registerReceiver(this, i);
     }
@@ -68,6 +98,10 @@ public class WifiScanner extends BroadcastReceiver {
     public synchronized void stop() {
         if (mStarted) {
             mContext.unregisterReceiver(this);
+            mBlockListObserver.stopWatching();
+            mBlockListObserver = null;
+            GPSScanner.LOCATION.unsubscribe(mLocationSubscriber);
+            Log.i(LOGTAG, "Scan scheduler: " + mScheduler);
         }
         deactivatePeriodicScan();
         mStarted = false;
@@ -84,29 +118,57 @@ public class WifiScanner extends BroadcastReceiver {
                 deactivatePeriodicScan();
             }
             mWifiEnabled = getWifiManager().isWifiEnabled();
+        } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            if (level >= 0 && scale > 0) {
+                mScheduler.setBattery(level * 100 / scale, plugged != 0);
+            }
         } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
-            ArrayList<ScanResult> scanResults = new ArrayList<ScanResult>();
-            for (ScanResult scanResult : getWifiManager().getScanResults()) {
-                scanResult.BSSID = BSSIDBlockList.canonicalizeBSSID(scanResult.BSSID);
-                if (shouldLog(scanResult)) {
+            // The list is shared with the subscribers once published, so it cannot be reused
+            List<ScanResult> results = getWifiManager().getScanResults();
+            ArrayList<ScanResult> scanResults = new ArrayList<ScanResult>(results.size());
+            for (int i = 0, size = results.size(); i < size; i++) {
+                ScanResult scanResult = results.get(i);
+                long bssid = BSSIDBlockList.parseBSSID(scanResult.BSSID);
+                scanResult.BSSID = BSSIDBlockList.canonicalizeBSSID(scanResult.BSSID, bssid);
+                if (shouldLog(scanResult, bssid)) {
+                    if (scanResults.size() == mScanBSSIDs.length) {
+                        long[] grown = new long[mScanBSSIDs.length * 2];
+                        System.arraycopy(mScanBSSIDs, 0, grown, 0, mScanBSSIDs.length);
+                        mScanBSSIDs = grown;
+                    }
+                    mScanBSSIDs[scanResults.size()] = bssid;
                     scanResults.add(scanResult);
-                    mAPs.add(scanResult.BSSID);
+                    synchronized (mAPs) {
+                        mAPs.add(bssid);
+                    }
                     //Log.v(LOGTAG, "BSSID=" + scanResult.BSSID + ", SSID=\"" + scanResult.SSID + "\", Signal=" + scanResult.level);
                 }
             }
             mVisibleAPs.set(scanResults.size());
+            final int newAPs = mScheduler.onScanResults(mScanBSSIDs, scanResults.size());
+            scheduleNextScan();
+            NEW_APS.publish(newAPs);
             reportScanResults(scanResults);
         }
     }
 
     public int getAPCount() {
-        return mAPs.size();
+        synchronized (mAPs) {
+            return mAPs.size();
+        }
     }
 
     public int getVisibleAPCount() {
         return mVisibleAPs.get();
     }
 
+    public int getScanInterval() {
+        return (int) mScheduler.getInterval();
+    }
+
     public synchronized int getStatus() {
         if (!mStarted) {
             return STATUS_IDLE;
@@ -132,11 +194,23 @@ public class WifiScanner extends BroadcastReceiver {
         public void run() {
             if (mWifiLock == null) return;
             if (DBG) Log.d(LOGTAG, "WiFi Scanning Timer fired");
+            final long now = SystemClock.elapsedRealtime();
+            mScheduler.onScanStarted(now - mLastScanTime);
+            mLastScanTime = now;
             getWifiManager().startScan();
-            mHandler.postDelayed(this, WIFI_MIN_UPDATE_TIME);
+            // Rescheduled when the results arrive, this is a fallback if they do not
+            mHandler.postDelayed(this, mScheduler.getInterval());
         }
     };
 
+    private synchronized void scheduleNextScan() {
+        if (mWifiLock == null) return;
+        final long delay = mScheduler.getNextScanDelay(SystemClock.elapsedRealtime() - mLastScanTime);
+        if (DBG) Log.d(LOGTAG, "Next WiFi scan in " + delay + " ms, " + mScheduler);
+        mHandler.removeCallbacks(mTimerTaskRunnable);
+        mHandler.postDelayed(mTimerTaskRunnable, delay);
+    }
+
     private synchronized void deactivatePeriodicScan() {
         if (mWifiLock == null) {
             return;
@@ -152,8 +226,8 @@ public class WifiScanner extends BroadcastReceiver {
         mVisibleAPs.set(0);
     }
 
-    private static boolean shouldLog(ScanResult scanResult) {
-        if (BSSIDBlockList.contains(scanResult)) {
+    private static boolean shouldLog(ScanResult scanResult, long bssid) {
+        if (BSSIDBlockList.contains(bssid)) {
             Log.w(LOGTAG, "Blocked BSSID: " + scanResult);
             return false;
         }
@@ -170,10 +244,6 @@ public class WifiScanner extends BroadcastReceiver {
 
     private void reportScanResults(ArrayList<ScanResult> scanResults) {
         if (scanResults.isEmpty()) return;
-        Intent i = new Intent(ScannerService.MESSAGE_TOPIC);
-        i.putExtra(Intent.EXTRA_SUBJECT, WIFI_SCANNER_EXTRA_SUBJECT);
-        i.putParcelableArrayListExtra(WIFI_SCANNER_ARG_SCAN_RESULTS, scanResults);
-        i.putExtra("time", System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(i);
+        SCAN_RESULTS.publish(scanResults);
     }
 }
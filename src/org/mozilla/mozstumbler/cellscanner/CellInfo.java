@@ -25,8 +25,8 @@ public class CellInfo implements Parcelable {
     public static final String CELL_RADIO_CDMA = "cdma";
     public static final String CELL_RADIO_LTE = "lte";
 
-    static final int UNKNOWN_CID = -1;
-    static final int UNKNOWN_SIGNAL = -1000;
+    public static final int UNKNOWN_CID = -1;
+    public static final int UNKNOWN_SIGNAL = -1000;
 
     public static final Parcelable.Creator<CellInfo> CREATOR
             = new Parcelable.Creator<CellInfo>() {
@@ -79,6 +79,10 @@ public class CellInfo implements Parcelable {
         return mCellRadio;
     }
 
+    public int getCellNetworkType() {
+        return mCellNetworkType;
+    }
+
     public int getMcc() {
         return mMcc;
     }
@@ -103,6 +107,8 @@ public class CellInfo implements Parcelable {
 
     public int getAsu() { return mAsu; }
 
+    public int getTa() { return mTa; }
+
     public JSONObject toJSONObject() {
         final JSONObject obj = new JSONObject();
 
@@ -134,6 +140,27 @@ public class CellInfo implements Parcelable {
                 + " " + getPsc();
     }
 
+    /**
+     * Returns a 64-bit key of the fields of {@link #getCellIdentity()}, for counting unique
+     * cells without building the identity string. Different cells may share a key,
+     * with negligible probability.
+     */
+    public long getCellKey() {
+        long key = mRadio == null ? 0 : mRadio.hashCode();
+        key = mixCellKey(key, mCellRadio == null ? 0 : mCellRadio.hashCode());
+        key = mixCellKey(key, mMcc);
+        key = mixCellKey(key, mMnc);
+        key = mixCellKey(key, mLac);
+        key = mixCellKey(key, mCid);
+        key = mixCellKey(key, mPsc);
+        return key;
+    }
+
+    private static long mixCellKey(long key, int value) {
+        key = (key ^ (value & 0xffffffffL)) * 0x9e3779b97f4a7c15L;
+        return key ^ (key >>> 29);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -1,41 +1,63 @@
 package org.mozilla.mozstumbler.cellscanner;
 
 import android.content.Context;
-import android.content.Intent;
 import android.os.Handler;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.BuildConfig;
-import org.mozilla.mozstumbler.ScannerService;
+import org.mozilla.mozstumbler.EventBus;
+import org.mozilla.mozstumbler.LongHashSet;
 import org.mozilla.mozstumbler.preferences.Prefs;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 public class CellScanner {
-    public static final String CELL_SCANNER_EXTRA_SUBJECT = "CellScanner";
-    public static final String CELL_SCANNER_ARG_CELLS = "org.mozilla.mozstumbler.cellscanner.CellScanner.cells";
+    /**
+     * Cells currently seen, without the invalid ones, published when they change.
+     * Empty once the cells are lost or the scanner is stopped.
+     */
+    public static final EventBus.Topic<List<CellInfo>> CELLS =
+            new EventBus.Topic<List<CellInfo>>("CellScanner.CELLS");
 
     private static final boolean DBG = BuildConfig.DEBUG;
     private static final String LOGTAG = CellScanner.class.getName();
     private static final long CELL_MIN_UPDATE_TIME = 1000; // milliseconds
+    private static final long CELL_HEARTBEAT_TIME = 10000; // milliseconds
+    private static final int CELLS_EXACT_COUNT_LIMIT = 1 << 16;
 
     private final Context mContext;
     private CellScannerImpl mImpl;
     private Handler mHandler;
-    private final Set<String> mCells = new HashSet<String>();
+    private final LongHashSet mCells = new LongHashSet(CELLS_EXACT_COUNT_LIMIT);
     private final PscWatcher mPscChecker = new PscWatcher();
     private int mCurrentCellInfoCount;
+    private List<CellInfo> mLastCells = Collections.emptyList();
+    private long mLastScanTime;
+    private boolean mScanPending;
 
     interface CellScannerImpl {
-        public void start();
+        /**
+         * The listener is called on the main thread when the cells may have changed,
+         * it is not used by the scanners that must be polled.
+         */
+        public void start(CellChangeListener listener);
 
         public void stop();
 
         public List<CellInfo> getCellInfo();
+
+        /**
+         * Whether the scanner notifies cell changes, so that it only needs to be polled
+         * as a heartbeat, for the changes it does not notify (e.g. neighbour signal).
+         */
+        public boolean isEventDriven();
+    }
+
+    interface CellChangeListener {
+        public void onCellsChanged();
     }
 
     public CellScanner(Context context) {
@@ -74,51 +96,87 @@ public class CellScanner {
         }
 
         mPscChecker.reset();
-        mImpl.start();
         mHandler = new Handler();
+        mImpl.start(mCellChangeListener);
         mHandler.post(mCellScanRunnable);
     }
 
+    private final CellChangeListener mCellChangeListener = new CellChangeListener() {
+        @Override
+        public void onCellsChanged() {
+            if (mHandler == null || mScanPending) {
+                return;
+            }
+            // Bursts of changes are coalesced into a single scan
+            final long sinceLastScan = SystemClock.elapsedRealtime() - mLastScanTime;
+            mHandler.removeCallbacks(mCellScanRunnable);
+            mHandler.postDelayed(mCellScanRunnable, Math.max(0, CELL_MIN_UPDATE_TIME - sinceLastScan));
+            mScanPending = true;
+        }
+    };
+
     private final Runnable mCellScanRunnable = new Runnable() {
         @Override
         public void run() {
             if (DBG) Log.d(LOGTAG, "Cell Scanning Timer fired");
-            final long curTime = System.currentTimeMillis();
+            mScanPending = false;
+            mLastScanTime = SystemClock.elapsedRealtime();
             ArrayList<CellInfo> cells = new ArrayList<CellInfo>(mImpl.getCellInfo());
             cells = mPscChecker.removeInvalidCells(cells);
             mCurrentCellInfoCount = cells.size();
-            if (!cells.isEmpty()) {
-                for (CellInfo cell : cells) mCells.add(cell.getCellIdentity());
-
-                Intent intent = new Intent(ScannerService.MESSAGE_TOPIC);
-                intent.putExtra(Intent.EXTRA_SUBJECT, CELL_SCANNER_EXTRA_SUBJECT);
-                intent.putParcelableArrayListExtra(CELL_SCANNER_ARG_CELLS, cells);
-                intent.putExtra("time", curTime);
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            if (!isSameCells(cells, mLastCells)) {
+                synchronized (mCells) {
+                    for (CellInfo cell : cells) mCells.add(cell.getCellKey());
+                }
+                mLastCells = cells;
+                CELLS.publish(cells);
             }
-            mHandler.postDelayed(this, CELL_MIN_UPDATE_TIME);
+            mHandler.postDelayed(this, mImpl.isEventDriven() ? CELL_HEARTBEAT_TIME : CELL_MIN_UPDATE_TIME);
         }
     };
 
+    private static boolean isSameCells(List<CellInfo> cells, List<CellInfo> lastCells) {
+        // The lists are short, and mostly in the same order
+        return cells.size() == lastCells.size() && lastCells.containsAll(cells);
+    }
+
     public void stop() {
         if (mHandler != null) {
             mHandler.removeCallbacks(mCellScanRunnable);
             mHandler = null;
         }
+        mScanPending = false;
         if (mImpl != null) {
             mImpl.stop();
             mImpl = null;
         }
+        if (!mLastCells.isEmpty()) {
+            mLastCells = Collections.emptyList();
+            CELLS.publish(mLastCells);
+        }
     }
 
     public int getCellInfoCount() {
-        return mCells.size();
+        synchronized (mCells) {
+            return mCells.size();
+        }
     }
 
     public int getCurrentCellInfoCount() {
         return mCurrentCellInfoCount;
     }
 
+    /**
+     * Samsung service mode refreshes whose screens were unchanged, so not parsed again
+     */
+    public int getServiceModeCacheHits() {
+        return ServiceModeSnapshotCache.getHits();
+    }
+
+    public int getServiceModeCacheMisses() {
+        return ServiceModeSnapshotCache.getMisses();
+    }
+
 
     public static class PscWatcher {
         private static final int WAIT_TIMEOUT_S = 40;
@@ -41,6 +41,8 @@ public class DefaultCellScanner implements CellScanner.CellScannerImpl {
     private volatile int mSignalStrength;
     private volatile int mCdmaDbm;
 
+    private CellScanner.CellChangeListener mCellChangeListener;
+
     interface GetAllCellInfoScannerImpl {
         List<CellInfo> getAllCellInfo(TelephonyManager tm);
     }
@@ -72,21 +74,32 @@ public class DefaultCellScanner implements CellScanner.CellScannerImpl {
     }
 
     @Override
-    public void start() {
+    public void start(CellScanner.CellChangeListener listener) {
         mSignalStrength = CellInfo.UNKNOWN_SIGNAL;
         mCdmaDbm = CellInfo.UNKNOWN_SIGNAL;
-        mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        mCellChangeListener = listener;
+        int events = PhoneStateListener.LISTEN_SIGNAL_STRENGTHS | PhoneStateListener.LISTEN_CELL_LOCATION;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            events |= PhoneStateListener.LISTEN_CELL_INFO;
+        }
+        mTelephonyManager.listen(mPhoneStateListener, events);
         mScreenMonitor.start();
     }
 
     @Override
     public void stop() {
         mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+        mCellChangeListener = null;
         mScreenMonitor.stop();
         mSignalStrength = CellInfo.UNKNOWN_SIGNAL;
         mCdmaDbm = CellInfo.UNKNOWN_SIGNAL;
     }
 
+    @Override
+    public boolean isEventDriven() {
+        return true;
+    }
+
     @Override
     public List<CellInfo> getCellInfo() {
         List<CellInfo> records = new ArrayList<CellInfo>();
@@ -172,8 +185,25 @@ public class DefaultCellScanner implements CellScanner.CellScannerImpl {
                 mCdmaDbm = ss.getCdmaDbm();
             }
         }
+
+        @Override
+        public void onCellLocationChanged(CellLocation location) {
+            notifyCellsChanged();
+        }
+
+        @Override
+        public void onCellInfoChanged(List<android.telephony.CellInfo> cellInfo) {
+            notifyCellsChanged();
+        }
     };
 
+    private void notifyCellsChanged() {
+        final CellScanner.CellChangeListener listener = mCellChangeListener;
+        if (listener != null) {
+            listener.onCellsChanged();
+        }
+    }
+
     private static class GetAllCellInfoScannerDummy implements GetAllCellInfoScannerImpl {
         @Override
         public List<CellInfo> getAllCellInfo(TelephonyManager tm) {
@@ -52,11 +52,19 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
     private final Method mMethodGetNetworkOperatorGemini;
     private final Method mMethodGetNetworkTypeGemini;
 
+    /**
+     * Arguments of the per-SIM methods, built once so that the calls on every scan
+     * neither box the SIM number nor allocate a varargs array.
+     */
+    private final Object[][] mSimArgs;
+
     private boolean mBound;
     private IMtkServiceMode mMtkService;
 
     private final ScreenMonitor mScreenMonitor;
 
+    private CellScanner.CellChangeListener mCellChangeListener;
+
     GeminiCellScanner(Context context) throws UnsupportedOperationException {
         int presentSimNums[] = new int[MAX_GEMINI_SIM_NUM];
         int presentPhoneTypes[] = new int[MAX_GEMINI_SIM_NUM];
@@ -81,6 +89,10 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
         } catch (NoSuchMethodException nsme) {
             throw new UnsupportedOperationException(nsme);
         }
+        setAccessible(mMethodGetCellLocationGemini,
+                mMethodGetNeighboringCellInfoGemini,
+                mMethodGetNetworkOperatorGemini,
+                mMethodGetNetworkTypeGemini);
 
         presentSimCnt = 0;
         try {
@@ -116,6 +128,10 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
         mSignalStrength = new AtomicIntegerArray(presentSimCnt);
         mCdmaDbm = new AtomicIntegerArray(presentSimCnt);
         mPhoneStateListeners = new PhoneStateListener[presentSimCnt];
+        mSimArgs = new Object[presentSimCnt][];
+        for (int i = 0; i < presentSimCnt; ++i) {
+            mSimArgs[i] = new Object[] { mPresentSimNums[i] };
+        }
 
         for (int i = 0; i < presentSimCnt; ++i) {
             mPhoneStateListeners[i] = new PhoneStateListener(i);
@@ -128,7 +144,8 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
     }
 
     @Override
-    public void start() {
+    public void start(CellScanner.CellChangeListener listener) {
+        mCellChangeListener = listener;
         for (int i = 0; i < mSignalStrength.length(); ++i) {
             mSignalStrength.set(i, CellInfo.UNKNOWN_SIGNAL);
         }
@@ -175,11 +192,17 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
             mCdmaDbm.set(i, CellInfo.UNKNOWN_SIGNAL);
         }
 
+        mCellChangeListener = null;
         mScreenMonitor.stop();
 
         if (mBound) mContext.unbindService(mMtkServiceConnection);
     }
 
+    @Override
+    public boolean isEventDriven() {
+        return true;
+    }
+
     @Override
     public List<CellInfo> getCellInfo() {
         final List<CellInfo> cellsInfo;
@@ -200,10 +223,10 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
         int networkType;
         CsceEMServCellSStatusInd mStatusInd = null;
 
+        final Object[] simArgs = mSimArgs[presentSimNumsIndex];
+
         try {
-            cl = (CellLocation) mMethodGetCellLocationGemini.invoke(
-                    mTelephonyManager, mPresentSimNums[presentSimNumsIndex]
-            );
+            cl = (CellLocation) mMethodGetCellLocationGemini.invoke(mTelephonyManager, simArgs);
             if (cl == null) {
                 return Collections.emptyList();
             }
@@ -215,14 +238,9 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
             }
 
             neighbours = (List<NeighboringCellInfo>) mMethodGetNeighboringCellInfoGemini.invoke(
-                    mTelephonyManager, mPresentSimNums[presentSimNumsIndex]
-            );
-            networkOperator = (String) mMethodGetNetworkOperatorGemini.invoke(
-                    mTelephonyManager, mPresentSimNums[presentSimNumsIndex]
-            );
-            networkType = (Integer) mMethodGetNetworkTypeGemini.invoke(
-                    mTelephonyManager, mPresentSimNums[presentSimNumsIndex]
-            );
+                    mTelephonyManager, simArgs);
+            networkOperator = (String) mMethodGetNetworkOperatorGemini.invoke(mTelephonyManager, simArgs);
+            networkType = (Integer) mMethodGetNetworkTypeGemini.invoke(mTelephonyManager, simArgs);
         } catch (Exception ex) {
             throw new IllegalStateException(ex);
         }
@@ -280,6 +298,20 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
         return cells;
     }
 
+    /**
+     * Skips the access checks of Method.invoke(), the methods are public but
+     * the TelephonyManager subclass may not be.
+     */
+    private static void setAccessible(Method... methods) {
+        for (Method method : methods) {
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException se) {
+                Log.w(LOGTAG, "setAccessible() failed: " + method.getName(), se);
+            }
+        }
+    }
+
     private final class PhoneStateListener extends android.telephony.PhoneStateListener {
         private final int mSimNum;
 
@@ -299,6 +331,10 @@ class GeminiCellScanner implements CellScanner.CellScannerImpl {
         @Override
         public void onCellLocationChanged(CellLocation location) {
             Log.v(LOGTAG, "onCellLocationChanged(): " + location);
+            final CellScanner.CellChangeListener listener = mCellChangeListener;
+            if (listener != null) {
+                listener.onCellsChanged();
+            }
         }
     }
 
@@ -1,7 +1,6 @@
 package org.mozilla.mozstumbler.cellscanner;
 
 import android.content.Context;
-import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -20,8 +19,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import ru0xdc.samsung.ril.multiclient.app.Utils;
 import ru0xdc.samsung.ril.multiclient.app.rilexecutor.DetectResult;
@@ -35,7 +32,7 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
 
     private static final int ID_REQUEST_START_SERVICE_MODE_COMMAND = 1;
     private static final int ID_REQUEST_FINISH_SERVICE_MODE_COMMAND = 2;
-    private static final int ID_REQUEST_EXECUTE_KEY_SEQUENCE = 3;
+    private static final int ID_REQUEST_UPDATE_CELLS = 3;
     private static final int ID_REQUEST_PRESS_A_KEY = 4;
     private static final int ID_REQUEST_REFRESH = 5;
 
@@ -44,39 +41,40 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
     private static final int ID_RESPONSE_PRESS_A_KEY = 103;
 
     private static final int REQUEST_TIMEOUT = 10000; // ms
+    private static final int KEY_PRESS_DELAY = 10; // ms
+    private static final int UPDATE_INTERVAL = 1000; // ms
+
+    // States of the request sequence
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_ENTERING = 1;
+    private static final int STATE_BASIC_INFO = 2;
+    private static final int STATE_NEIGHBOURS = 3;
+    private static final int STATE_LEAVING = 4;
+
+    // Shared by all the instances, so that their request sequences never overlap
+    private static HandlerThread sHandlerThread;
+
+    // The instance in service mode, from its enter command until its end command completes,
+    // and the enter commands of the instances waiting for it, in order.
+    // Only accessed on the handler thread.
+    private static MyHandler sServiceModeOwner;
+    private static final Queue<Message> sPendingStarts = new LinkedList<Message>();
 
     private SamsungMulticlientRilExecutor mRequestExecutor;
 
-    private HandlerThread mHandlerThread;
     private Handler mHandler;
 
-    private final ConditionVariable mRequestCondvar = new ConditionVariable();
-    private final List<String> mLastResponse = new ArrayList<String>();
+    // The cells parsed from the last screens, replaced by the handler thread
+    private volatile List<CellInfo> mCells = Collections.emptyList();
+
+    private Handler mListenerHandler;
+    private volatile CellScanner.CellChangeListener mListener;
 
     private final int mPhoneType;
     private final TelephonyManager mTelephonyManager;
 
-    private final Matcher mWcdmaNetTypeMatcher;
-    private final Matcher mWcdmaRegPlmnMatcher;
-    private final Matcher mWcdmaHspaPlusUsedMatcher;
-    private final Matcher mWcdmaChUplDlMatcher;
-    private final Matcher mWcdmaCidMatcher;
-    private final Matcher mWcdmaLacMatcher;
-    private final Matcher mWcdmaPscMatcher;
-    private final Matcher mWcdmaRscpMatcher;
-    private final Matcher mUmtMatcher;
-    private final Matcher mUmtsNeighbourMatcher;
-
-    private final Matcher mGsmMatcher;
-    private final Matcher mGsmBandBsicMatcher;
-    private final Matcher mGsmPlmnMatcher;
-    private final Matcher mGsmTchBcchFreqMatcher;
-    private final Matcher mGsmRssiRxLevMatcher;
-    private final Matcher mGsmAvgRssiMatcher;
-    private final Matcher mGsmCidLacMatcher;
-    private final Matcher mGsmNomTxLevMatcher;
-    private final Matcher mGsmTsVocTypeMatcher;
-
+    private final ServiceModeLineReader mLineReader = new ServiceModeLineReader();
+    private final ServiceModeSnapshotCache mSnapshotCache = new ServiceModeSnapshotCache();
 
     public SamsungServiceModeCellScanner(Context serviceContext) {
         mTelephonyManager = (TelephonyManager) serviceContext.getSystemService(Context.TELEPHONY_SERVICE);
@@ -86,34 +84,10 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         }
 
         mPhoneType = mTelephonyManager.getPhoneType();
-
-        mUmtMatcher = Pattern.compile("UMTS\\s+:\\s+(.+)").matcher("");
-        // Matcher mRrcStateMatcher = Pattern.compile("RRC State\\s+:\\s+(.+)").matcher("");
-
-        mWcdmaNetTypeMatcher = Pattern.compile("WCDMA\\s+\\d+\\s+Band\\s+\\d").matcher("");
-        mWcdmaRegPlmnMatcher = Pattern.compile("Reg\\s+PLMN\\s+(\\d+)\\-(\\d+),\\s*IsPCS\\?\\s+(\\d+)").matcher("");
-        mWcdmaHspaPlusUsedMatcher = Pattern.compile("HSPA\\+\\s+used:\\s+(\\d+)").matcher("");
-        mWcdmaChUplDlMatcher = Pattern.compile("CH\\s+DL:\\s*(\\d)+,\\s+UL:\\s*(\\d+)").matcher("");
-        mWcdmaCidMatcher = Pattern.compile("CELL_ID\\s*:\\s*0x([0-9a-fA-F]+)").matcher("");
-        mWcdmaLacMatcher = Pattern.compile("LAC\\s*:\\s*0x([0-9a-fA-F]+)").matcher("");
-        mWcdmaPscMatcher = Pattern.compile("PSC\\s*:\\s*([0-9a-fA-F]+)").matcher("");
-        mWcdmaRscpMatcher = Pattern.compile("RSCP:\\s*(\\-?\\d+)\\s*\\(AVG\\s*:\\s*(\\-?\\d+)\\s*\\),\\s*ECIO:\\s*(\\-?\\d+)").matcher("");
-        mUmtsNeighbourMatcher = Pattern.compile("PSC\\s*:\\s*(\\d*),\\s*RSCP\\s*:\\s*(\\-?\\d*),\\s*Type\\s*:\\s*(\\d+)").matcher("");
-
-        mGsmMatcher = Pattern.compile("GSM\\s+:\\s+(.+)").matcher("");
-        mGsmBandBsicMatcher = Pattern.compile("Band\\s*:\\s*(.+),\\s*BSIC\\s*:\\s*(\\d+)").matcher("");
-        mGsmPlmnMatcher = Pattern.compile("Reg\\s*PLMN\\s+MCC\\((\\d+)\\)-MNC\\((\\d)\\).*").matcher("");
-        mGsmTchBcchFreqMatcher = Pattern.compile("TchFrq\\s*:\\s*(\\d*)\\s*,\\s*BcchFrq\\s*:\\s*(\\d*).*").matcher("");
-        mGsmRssiRxLevMatcher = Pattern.compile("RSSI\\s*:\\s*(\\-?\\d+)\\s*,\\s*RxLev\\s*:\\s*(\\-?\\d*).*").matcher("");
-        mGsmAvgRssiMatcher = Pattern.compile("AVG\\s+RSSI\\s*:\\s*(\\-?\\d+)").matcher("");
-        mGsmCidLacMatcher = Pattern.compile("Cell_id\\s*:\\s*(\\d+)\\s*,\\s*LAC\\s*:\\s*(\\d*)").matcher("");
-        mGsmNomTxLevMatcher = Pattern.compile("NOM\\s*:\\s*(\\d+),\\s*TxLev\\s*:\\s*(\\d+)").matcher("");
-        mGsmTsVocTypeMatcher = Pattern.compile("TS\\s*:\\s*(\\d+),\\s*Voc\\s*Type\\s*:\\s*(\\d+)").matcher("");
-
     }
 
     @Override
-    public void start() {
+    public void start(CellScanner.CellChangeListener listener) {
         mRequestExecutor = new SamsungMulticlientRilExecutor();
         DetectResult r = mRequestExecutor.detect();
         if (!r.available) {
@@ -121,45 +95,92 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         }
         mRequestExecutor.start();
 
-        mHandlerThread = new HandlerThread("ServiceModeSeqHandler");
-        mHandlerThread.start();
+        mListener = listener;
+        mListenerHandler = new Handler();
 
-        Looper l = mHandlerThread.getLooper();
-        mHandler = new Handler(l, new MyHandler());
+        mHandler = new Handler(getHandlerLooper(), new MyHandler());
 
-        enterServiceMode();
+        // The screens are then refreshed every UPDATE_INTERVAL, until stop()
+        mHandler.obtainMessage(ID_REQUEST_START_SERVICE_MODE_COMMAND,
+                OemCommands.OEM_SM_TYPE_TEST_MANUAL,
+                OemCommands.OEM_SM_TYPE_SUB_ENTER,
+                new KeyStep[] {
+                    KeyStep.KEY_START_SERVICE_MODE,
+                    new KeyStep('1', false), // [1] DEBUG SCREEN
+                }).sendToTarget();
     }
 
     @Override
     public void stop() {
-        try {
-            leaveServiceMode();
-        } catch (UnsupportedOperationException iae) {
-            Log.e(LOGTAG, "leaveServiceMode() failed", iae);
-        }
+        mListener = null;
+        mListenerHandler.removeCallbacks(mNotifyListener);
 
-        mHandler = null;
-        mHandlerThread.quit();
-        mHandlerThread = null;
+        // The handler thread leaves the service mode, then stops the executor.
+        // The next instance only enters the service mode after that.
+        mHandler.sendEmptyMessage(ID_REQUEST_FINISH_SERVICE_MODE_COMMAND);
+        mCells = Collections.emptyList();
+    }
 
-        mRequestExecutor.stop();
-        mRequestExecutor = null;
+    private static synchronized Looper getHandlerLooper() {
+        if (sHandlerThread == null) {
+            sHandlerThread = new HandlerThread("ServiceModeSeqHandler");
+            sHandlerThread.start();
+        }
+        return sHandlerThread.getLooper();
     }
 
+    @Override
+    public boolean isEventDriven() {
+        // The handler thread refreshes the screens, and notifies the changes
+        return true;
+    }
+
+    /**
+     * @return the cells parsed from the last screens, without waiting
+     */
     @Override
     public List<CellInfo> getCellInfo() {
-        List<CellInfo> cells;
-        if (!mRequestCondvar.block(100)) return Collections.emptyList();
+        return mCells;
+    }
+
+    private final Runnable mNotifyListener = new Runnable() {
+        @Override
+        public void run() {
+            final CellScanner.CellChangeListener listener = mListener;
+            if (listener != null) listener.onCellsChanged();
+        }
+    };
 
-        cells = new ArrayList<CellInfo>(7);
+    /**
+     * Called on the handler thread.
+     */
+    private void setCells(List<byte[]> basicInfoScreen, List<byte[]> neighboursScreen) {
+        if (mSnapshotCache.isUnchanged(basicInfoScreen, neighboursScreen)) {
+            if (DBG) Log.v(LOGTAG, "Screens unchanged, cache hits: " + ServiceModeSnapshotCache.getHits()
+                    + ", misses: " + ServiceModeSnapshotCache.getMisses());
+            return;
+        }
 
-        List<String> currentInfo = getBasicInfo();
-        List<String> neighbours = getNeighbours();
+        List<CellInfo> cells = new ArrayList<CellInfo>(7);
 
-        CellInfo info = parseCurrentCell(currentInfo);
+        CellInfo info = parseCurrentCell(unpackScreen(basicInfoScreen));
         if (info != null) cells.add(info);
-        cells.addAll(parseNeighbours(neighbours));
-        return cells;
+        cells.addAll(parseNeighbours(unpackScreen(neighboursScreen)));
+
+        final List<CellInfo> lastCells = mCells;
+        if (cells.size() == lastCells.size() && lastCells.containsAll(cells)) {
+            return;
+        }
+        mCells = Collections.unmodifiableList(cells);
+        mListenerHandler.post(mNotifyListener);
+    }
+
+    private static List<String> unpackScreen(List<byte[]> screen) {
+        if (screen.size() == 1) return Utils.unpackListOfStrings(screen.get(0));
+
+        List<String> lines = new ArrayList<String>();
+        for (byte[] response: screen) lines.addAll(Utils.unpackListOfStrings(response));
+        return lines;
     }
 
     private CellInfo parseCurrentCell(List<String> info) {
@@ -169,11 +190,11 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
 
         cell = null;
         String s = info.get(0);
-        if (mUmtMatcher.reset(s).matches()) {
-            // String isHomeStr = mUmtMatcher.group(1);
+        // UMTS : HOME(CS+PS)
+        if (isNetworkTypeLine(s, "UMTS")) {
             cell =  parseWcdmaStatus(info);
-        } else if (mGsmMatcher.reset(s).matches()) {
-            // String isHomeStr = mGsmMatcher.group(1);
+        // GSM : HOME(CS+PS)
+        } else if (isNetworkTypeLine(s, "GSM")) {
             cell = parseGsmStatus(info);
         } else {
             Log.e(LOGTAG, "Unparseable network type: " + s);
@@ -185,17 +206,29 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         return cell;
     }
 
+    private boolean isNetworkTypeLine(String s, String networkType) {
+        final ServiceModeLineReader r = mLineReader.reset(s);
+        return r.expect(networkType) && r.expectSpaces() && r.expect(':') && r.expectSpacesAndValue();
+    }
+
     private List<CellInfo> parseNeighbours(List<String> info) {
         List<CellInfo> neighbours;
 
         if (info.size() < 2) return Collections.emptyList();
         neighbours = new ArrayList<CellInfo>(6);
 
+        final ServiceModeLineReader r = mLineReader;
         for (String s: info) {
-            if (mUmtsNeighbourMatcher.reset(s).matches()) {
-                int psc = integerOrMaxValue(mUmtsNeighbourMatcher.group(1));
-                int rscp = -1 * integerOrMaxValue(mUmtsNeighbourMatcher.group(2));
-                // int type = integerOrMaxValue(mUmtsNeighbourMatcher.group(3));
+            // PSC : 123, RSCP : -85, Type : 1
+            if (r.reset(s).expect("PSC") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.optionalNumber(false) && r.expect(',') && r.skipSpaces()
+                    && r.expect("RSCP") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.optionalNumber(true) && r.expect(',') && r.skipSpaces()
+                    && r.expect("Type") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expectNumber(10, false) && r.atEnd()) {
+                int psc = r.number(0);
+                int rscp = -1 * r.number(1);
+                // int type = r.number(2);
                 if (psc != 0xffff && psc != Integer.MAX_VALUE && rscp != Integer.MAX_VALUE) {
                     final CellInfo cellInfo = new CellInfo(mPhoneType);
                     cellInfo.setWcmdaCellInfo(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
@@ -227,41 +260,44 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         // RRC State:
         i.next();
 
+        final ServiceModeLineReader r = mLineReader;
         while (i.hasNext()) {
             String s = i.next();
-            // XXX: WCDMA 2100 Band 1
-            if (mWcdmaNetTypeMatcher.reset(s).matches()) {
-                // netType = s;
+            r.reset(s);
             // Reg PLMN 250-2, IsPCS? 0
-            } else if (mWcdmaRegPlmnMatcher.reset(s).matches()) {
-                mcc = integerOrMaxValue(mWcdmaRegPlmnMatcher.group(1));
-                mnc = integerOrMaxValue(mWcdmaRegPlmnMatcher.group(2));
+            if (r.expect("Reg") && r.expectSpaces() && r.expect("PLMN") && r.expectSpaces()
+                    && r.expectNumber(10, false) && r.expect('-') && r.expectNumber(10, false)
+                    && r.expect(',') && r.skipSpaces() && r.expect("IsPCS?") && r.expectSpaces()
+                    && r.expectNumber(10, false) && r.atEnd()) {
+                mcc = r.number(0);
+                mnc = r.number(1);
                 plmnFound = true;
-            // HSPA+ used:
-            } else if (mWcdmaHspaPlusUsedMatcher.reset(s).matches()) {
-                // hspaUsedFound = true;
-                // hspaPlusUsed = !"0".equals(mWcdmaHspaPlusUsedMatcher.group(1));
-            // CH DL:10687, UL:9737
-            } else if (mWcdmaChUplDlMatcher.reset(s).matches()) {
-                // chDl = integerOrMaxValue(mWcdmaChUplDlMatcher.group(1));
-                // chUl = integerOrMaxValue(mWcdmaChUplDlMatcher.group(2));
-            } else if (mWcdmaCidMatcher.reset(s).matches()) {
-                cid = integerOrMaxValue(mWcdmaCidMatcher.group(1), 16);
+            // CELL_ID: 0xXXXXXX
+            } else if (r.reset(s).expect("CELL_ID") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expect("0x") && r.expectNumber(16, false) && r.atEnd()) {
+                cid = r.number(0);
             // LAC: 0xXXX
-            } else if (mWcdmaLacMatcher.reset(s).matches()) {
-                lac = integerOrMaxValue(mWcdmaLacMatcher.group(1), 16);
+            } else if (r.reset(s).expect("LAC") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expect("0x") && r.expectNumber(16, false) && r.atEnd()) {
+                lac = r.number(0);
             // PSC:8
-            } else if (mWcdmaPscMatcher.reset(s).matches()) {
-                psc = integerOrMaxValue(mWcdmaPscMatcher.group(1), 16);
+            } else if (r.reset(s).expect("PSC") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expectNumber(16, false) && r.atEnd()) {
+                psc = r.number(0);
                 if (psc == 0xffff) psc = Integer.MAX_VALUE;
             // RSCP:-74(AVG:-73), ECIO:-8
-            } else if (mWcdmaRscpMatcher.reset(s).matches()) {
+            } else if (r.reset(s).expect("RSCP:") && r.skipSpaces() && r.expectNumber(10, true)
+                    && r.skipSpaces() && r.expect("(AVG") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expectNumber(10, true) && r.skipSpaces() && r.expect("),") && r.skipSpaces()
+                    && r.expect("ECIO:") && r.skipSpaces() && r.expectNumber(10, true) && r.atEnd()) {
                 rscpFound = true;
-                rscp = integerOrMaxValue(mWcdmaRscpMatcher.group(1));
-                // rscpAvg = integerOrMaxValue(mWcdmaRscpMatcher.group(2));
-                // ecio = integerOrMaxValue(mWcdmaRscpMatcher.group(3));
-            } else if ("AMR-NB".equals(s)) {
-                // boolean amrNb = true;
+                rscp = r.number(0);
+                // rscpAvg = r.number(1);
+                // ecio = r.number(2);
+            // WCDMA 2100 Band 1, HSPA+ used: 1, CH DL:10687, UL:9737
+            } else if (s.startsWith("WCDMA") || s.startsWith("HSPA+") || s.startsWith("CH")
+                    || "AMR-NB".equals(s)) {
+                // Not used
             } else {
                 if (DBG) Log.v(LOGTAG, "unparsable string: " + s);
             }
@@ -306,40 +342,35 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         Iterator<String> i = info.iterator();
         // GSM: HOME(CS+PS)
         i.next();
+        final ServiceModeLineReader r = mLineReader;
         while (i.hasNext()) {
             String s = i.next();
-            // Band : GSM1800, BSIC: 21
-            if (mGsmBandBsicMatcher.reset(s).matches()) {
-                // String band = mGsmBandBsicMatcher.group(1);
-                // int bsic = integerOrMaxValue(mGsmBandBsicMatcher.group(2));
+            r.reset(s);
             // Reg PLMN MCC(XXX)-MNC(XXX), IsPCS
-            } else if (mGsmPlmnMatcher.reset(s).matches()) {
+            if (r.expect("Reg") && r.skipSpaces() && r.expect("PLMN") && r.expectSpaces()
+                    && r.expect("MCC(") && r.expectNumber(10, false) && r.expect(")-MNC(")
+                    && r.expectNumber(10, false) && r.expect(')')) {
                 plmnFound = true;
-                mcc = integerOrMaxValue(mGsmPlmnMatcher.group(1));
-                mnc = integerOrMaxValue(mGsmPlmnMatcher.group(2));
-            // TchFrq: , BcchFrq: XXX
-            } else if (mGsmTchBcchFreqMatcher.reset(s).matches()) {
-                // String chFrq = mGsmTchBcchFreqMatcher.group(1);
-                // String bcchFrq = mGsmTchBcchFreqMatcher.group(2);
-            } else if (mGsmRssiRxLevMatcher.reset(s).matches()) {
+                mcc = r.number(0);
+                mnc = r.number(1);
+            // RSSI : -75, RxLev : 35
+            } else if (r.reset(s).expect("RSSI") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expectNumber(10, true) && r.skipSpaces() && r.expect(',') && r.skipSpaces()
+                    && r.expect("RxLev") && r.skipSpaces() && r.expect(':')) {
                 rssiFound = true;
-                rssi = integerOrMaxValue(mGsmRssiRxLevMatcher.group(1));
-                // int txLev = integerOrMaxValue(mGsmRssiRxLevMatcher.group(2));
-            //  AVG RSSI :   54
-            } else if (mGsmAvgRssiMatcher.reset(s).matches()) {
-                // String avgRssi = mGsmAvgRssiMatcher.group(1);
-            // NOM : 0,   TxLev : 255
-            } else if (mGsmNomTxLevMatcher.reset(s).matches()) {
-                // String nom = mGsmNomTxLevMatcher.group(1);
-                // String txLev = mGsmNomTxLevMatcher.group(2);
-            } else if (mGsmCidLacMatcher.reset(s).matches()) {
-                cid = integerOrMaxValue(mGsmCidLacMatcher.group(1));
-                lac = integerOrMaxValue(mGsmCidLacMatcher.group(2));
-            } else if (mGsmTsVocTypeMatcher.reset(s).matches()) {
-                // String ts = mGsmTsVocTypeMatcher.group(1);
-                // String vocType = mGsmTsVocTypeMatcher.group(2);
-            } else if ("AMR-NB".equals(s)) {
-                // boolean amrNb = true;
+                rssi = r.number(0);
+            // Cell_id : 12345, LAC : 678
+            } else if (r.reset(s).expect("Cell_id") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.expectNumber(10, false) && r.skipSpaces() && r.expect(',') && r.skipSpaces()
+                    && r.expect("LAC") && r.skipSpaces() && r.expect(':') && r.skipSpaces()
+                    && r.optionalNumber(false) && r.atEnd()) {
+                cid = r.number(0);
+                lac = r.number(1);
+            // Band : GSM1800, BSIC: 21, TchFrq: , BcchFrq: XXX, AVG RSSI :   54,
+            // NOM : 0,   TxLev : 255, TS : 0, Voc Type : 0
+            } else if (s.startsWith("Band") || s.startsWith("TchFrq") || s.startsWith("AVG")
+                    || s.startsWith("NOM") || s.startsWith("TS") || "AMR-NB".equals(s)) {
+                // Not used
             } else {
                 if (DBG) Log.v(LOGTAG, "unparsable string: " + s);
             }
@@ -359,79 +390,16 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         return cellInfo;
     }
 
-    private int integerOrMaxValue(String string) { return integerOrMaxValue(string, 10); }
-
-    private int integerOrMaxValue(String string, int radix) {
-        int res = Integer.MAX_VALUE;
-        try {
-            res = Integer.valueOf(string, radix);
-        } catch (NumberFormatException ignore) {
-        }
-        return res;
-    }
-
     private static final KeyStep GET_BASIC_INFO_KEY_SEQ[] = new KeyStep[]{
             new KeyStep('1', true), // [1] BASIC INFORMATION
             new KeyStep((char)92, false), // back
     };
 
-    public List<String> getBasicInfo() {
-        return executeKeySequence(GET_BASIC_INFO_KEY_SEQ, REQUEST_TIMEOUT);
-    }
-
     private static final KeyStep GET_NEIGHBOURS_KEY_SEQ[] = new KeyStep[]{
             new KeyStep('4', true), // [4] NEIGHBOUR CELL
             new KeyStep((char)92, false) // back
     };
 
-    public List<String> getNeighbours() {
-        return executeKeySequence(GET_NEIGHBOURS_KEY_SEQ, REQUEST_TIMEOUT);
-    }
-
-    private synchronized void enterServiceMode() {
-        mRequestCondvar.close();
-        mHandler.obtainMessage(ID_REQUEST_START_SERVICE_MODE_COMMAND,
-                OemCommands.OEM_SM_TYPE_TEST_MANUAL,
-                OemCommands.OEM_SM_TYPE_SUB_ENTER,
-                new KeyStep[] {
-                    KeyStep.KEY_START_SERVICE_MODE,
-                    new KeyStep('1', false), // [1] DEBUG SCREEN
-                }).sendToTarget();
-        if (!mRequestCondvar.block(REQUEST_TIMEOUT)) {
-            Log.e(LOGTAG, "request timeout");
-            throw new UnsupportedOperationException("request timeout");
-        }
-    }
-
-    private synchronized void leaveServiceMode() {
-        mRequestCondvar.close();
-        mHandler.obtainMessage(ID_REQUEST_FINISH_SERVICE_MODE_COMMAND,
-                OemCommands.OEM_SM_TYPE_TEST_MANUAL,
-                OemCommands.OEM_SM_TYPE_SUB_ENTER,
-                null).sendToTarget();
-        if (!mRequestCondvar.block(REQUEST_TIMEOUT)) {
-            Log.e(LOGTAG, "request timeout");
-            mRequestCondvar.open();
-            throw new UnsupportedOperationException("request timeout");
-        }
-    }
-
-    private synchronized List<String> executeKeySequence(KeyStep keySeqence[], int timeout) {
-        if (mRequestExecutor == null) return Collections.emptyList();
-
-        mRequestCondvar.close();
-        mHandler.obtainMessage(ID_REQUEST_EXECUTE_KEY_SEQUENCE, keySeqence).sendToTarget();
-        if (!mRequestCondvar.block(timeout)) {
-            Log.e(LOGTAG, "request timeout");
-            mRequestCondvar.open();
-            return Collections.emptyList();
-        } else {
-            synchronized (mLastResponse) {
-                return new ArrayList<String>(mLastResponse);
-            }
-        }
-    }
-
     private static class KeyStep {
         public final char keychar;
         public boolean captureResponse;
@@ -444,27 +412,42 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
         public static KeyStep KEY_START_SERVICE_MODE = new KeyStep('\0', true);
     }
 
+    /**
+     * Runs the request sequences, each request being sent when the previous one has
+     * completed. Every request has a timeout, so a sequence always ends.
+     */
     private class MyHandler implements Handler.Callback {
 
         private int mCurrentType;
         private int mCurrentSubtype;
 
+        private int mState = STATE_IDLE;
+        private boolean mStopRequested;
+
         private Queue<KeyStep> mKeySequence;
 
-        private List<String> mResponse = new ArrayList<String>();
+        // The raw responses of the key steps capturing them
+        private List<byte[]> mResponse = new ArrayList<byte[]>();
+        private List<byte[]> mBasicInfo;
 
         @Override
         public boolean handleMessage(Message msg) {
             byte[] requestData;
-            Message responseMsg;
             KeyStep lastKeyStep;
 
             switch (msg.what) {
                 case ID_REQUEST_START_SERVICE_MODE_COMMAND:
                     if (DBG) Log.v(LOGTAG, "ID_REQUEST_START_SERVICE_MODE_COMMAND");
+                    if (sServiceModeOwner != null) {
+                        if (DBG) Log.v(LOGTAG, "Waiting for the previous scanner to leave the service mode");
+                        sPendingStarts.add(Message.obtain(msg));
+                        break;
+                    }
+                    sServiceModeOwner = this;
                     mCurrentType = msg.arg1;
                     mCurrentSubtype = msg.arg2;
                     mResponse.clear();
+                    mState = STATE_ENTERING;
 
                     if (msg.obj != null) {
                         mKeySequence = new LinkedList<KeyStep>(Arrays.asList((KeyStep[]) msg.obj));
@@ -474,35 +457,36 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
 
                     requestData = OemCommands.getEnterServiceModeData(
                             mCurrentType, mCurrentSubtype, OemCommands.OEM_SM_ACTION);
-                    responseMsg = mHandler.obtainMessage(ID_RESPONSE);
-                    mRequestExecutor.invokeOemRilRequestRaw(requestData, responseMsg);
+                    invoke(requestData, ID_RESPONSE);
                     break;
-                case ID_REQUEST_EXECUTE_KEY_SEQUENCE:
-                    if (DBG) Log.v(LOGTAG, "ID_REQUEST_EXECUTE_KEY_SEQUENCE");
-                    if (msg.obj != null) {
-                        mKeySequence = new LinkedList<KeyStep>(Arrays.asList((KeyStep []) msg.obj));
-                    } else {
-                        throw new IllegalArgumentException("key sequence is null");
-                    }
-                    mHandler.obtainMessage(ID_REQUEST_PRESS_A_KEY, mKeySequence.element().keychar, 0).sendToTarget();
+                case ID_REQUEST_UPDATE_CELLS:
+                    if (DBG) Log.v(LOGTAG, "ID_REQUEST_UPDATE_CELLS");
+                    if (mState != STATE_IDLE || mStopRequested) break;
+                    mState = STATE_BASIC_INFO;
+                    executeKeySequence(GET_BASIC_INFO_KEY_SEQ);
                     break;
                 case ID_REQUEST_FINISH_SERVICE_MODE_COMMAND:
                     if (DBG) Log.v(LOGTAG, "ID_REQUEST_FINISH_SERVICE_MODE_COMMAND");
-                    requestData = OemCommands.getEndServiceModeData(mCurrentType);
-                    responseMsg = mHandler.obtainMessage(ID_RESPONSE_FINISH_SERVICE_MODE_COMMAND);
-                    mRequestExecutor.invokeOemRilRequestRaw(requestData, responseMsg);
+                    mStopRequested = true;
+                    mHandler.removeMessages(ID_REQUEST_UPDATE_CELLS);
+                    if (sServiceModeOwner != this) {
+                        // Stopped before entering the service mode
+                        removePendingStart();
+                        mRequestExecutor.stop();
+                        break;
+                    }
+                    // Otherwise, once the current sequence is done
+                    if (mState == STATE_IDLE) leaveServiceMode();
                     break;
                 case ID_REQUEST_PRESS_A_KEY:
                     if (DBG) Log.v(LOGTAG, "ID_REQUEST_PRESS_A_KEY " + (char)msg.arg1);
                     requestData = OemCommands.getPressKeyData(msg.arg1, OemCommands.OEM_SM_ACTION);
-                    responseMsg = mHandler.obtainMessage(ID_RESPONSE_PRESS_A_KEY);
-                    mRequestExecutor.invokeOemRilRequestRaw(requestData, responseMsg);
+                    invoke(requestData, ID_RESPONSE_PRESS_A_KEY);
                     break;
                 case ID_REQUEST_REFRESH:
                     if (DBG) Log.v(LOGTAG, "ID_REQUEST_REFRESH");
                     requestData = OemCommands.getPressKeyData('\0', OemCommands.OEM_SM_QUERY);
-                    responseMsg = mHandler.obtainMessage(ID_RESPONSE);
-                    mRequestExecutor.invokeOemRilRequestRaw(requestData, responseMsg);
+                    invoke(requestData, ID_RESPONSE);
                     break;
                 case ID_RESPONSE:
                     if (DBG) Log.v(LOGTAG, "ID_RESPONSE");
@@ -521,15 +505,12 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
                             Log.v(LOGTAG, "No need to refresh.");
                             break;
                         }
-                        if (lastKeyStep.captureResponse) mResponse.addAll(Utils.unpackListOfStrings(result.result));
+                        if (lastKeyStep.captureResponse) mResponse.add(result.result);
                     } finally {
                         if (mKeySequence.isEmpty()) {
-                            synchronized (mLastResponse) {
-                                mLastResponse.clear();
-                                mLastResponse.addAll(mResponse);
-                                mResponse.clear();
-                            }
-                            mRequestCondvar.open();
+                            List<byte[]> response = new ArrayList<byte[]>(mResponse);
+                            mResponse.clear();
+                            onKeySequenceDone(response);
                         } else {
                             mHandler.obtainMessage(ID_REQUEST_PRESS_A_KEY, mKeySequence.element().keychar, 0).sendToTarget();
                         }
@@ -537,20 +518,70 @@ public class SamsungServiceModeCellScanner implements CellScanner.CellScannerImp
                     break;
                 case ID_RESPONSE_PRESS_A_KEY:
                     if (DBG) Log.v(LOGTAG, "ID_RESPONSE_PRESS_A_KEY");
-                    try {
-                        Thread.sleep(10);
-                        mHandler.obtainMessage(ID_REQUEST_REFRESH).sendToTarget();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                    mHandler.sendEmptyMessageDelayed(ID_REQUEST_REFRESH, KEY_PRESS_DELAY);
                     break;
                 case ID_RESPONSE_FINISH_SERVICE_MODE_COMMAND:
                     if (DBG) Log.v(LOGTAG, "ID_RESPONSE_FINISH_SERVICE_MODE_COMMAND");
-                    mRequestCondvar.open();
+                    RawResult result = (RawResult) msg.obj;
+                    if (result != null && result.exception != null) {
+                        Log.e(LOGTAG, "leaveServiceMode() failed", result.exception);
+                    }
+                    mRequestExecutor.stop();
+                    sServiceModeOwner = null;
+                    if (!sPendingStarts.isEmpty()) {
+                        sPendingStarts.poll().sendToTarget();
+                    }
                     break;
 
             }
             return true;
         }
+
+        private void invoke(byte[] requestData, int responseId) {
+            mRequestExecutor.invokeOemRilRequestRaw(requestData, mHandler.obtainMessage(responseId), REQUEST_TIMEOUT);
+        }
+
+        private void executeKeySequence(KeyStep keySequence[]) {
+            mKeySequence = new LinkedList<KeyStep>(Arrays.asList(keySequence));
+            mHandler.obtainMessage(ID_REQUEST_PRESS_A_KEY, mKeySequence.element().keychar, 0).sendToTarget();
+        }
+
+        private void onKeySequenceDone(List<byte[]> response) {
+            switch (mState) {
+                case STATE_ENTERING:
+                    mState = STATE_IDLE;
+                    mHandler.sendEmptyMessage(ID_REQUEST_UPDATE_CELLS);
+                    break;
+                case STATE_BASIC_INFO:
+                    mBasicInfo = response;
+                    mState = STATE_NEIGHBOURS;
+                    executeKeySequence(GET_NEIGHBOURS_KEY_SEQ);
+                    return;
+                case STATE_NEIGHBOURS:
+                    if (!mStopRequested) setCells(mBasicInfo, response);
+                    mBasicInfo = null;
+                    mState = STATE_IDLE;
+                    mHandler.sendEmptyMessageDelayed(ID_REQUEST_UPDATE_CELLS, UPDATE_INTERVAL);
+                    break;
+            }
+            if (mStopRequested && mState == STATE_IDLE) leaveServiceMode();
+        }
+
+        private void removePendingStart() {
+            for (Iterator<Message> i = sPendingStarts.iterator(); i.hasNext(); ) {
+                final Message start = i.next();
+                if (start.getTarget() == mHandler) {
+                    i.remove();
+                    start.recycle();
+                    return;
+                }
+            }
+        }
+
+        private void leaveServiceMode() {
+            mHandler.removeMessages(ID_REQUEST_UPDATE_CELLS);
+            mState = STATE_LEAVING;
+            invoke(OemCommands.getEndServiceModeData(mCurrentType), ID_RESPONSE_FINISH_SERVICE_MODE_COMMAND);
+        }
     }
 }
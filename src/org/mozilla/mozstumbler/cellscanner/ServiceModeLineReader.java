@@ -0,0 +1,152 @@
+package org.mozilla.mozstumbler.cellscanner;
+
+/**
+ * Single pass reader of the "Key : value" lines of the Samsung service mode screens.
+ *
+ * The expect*() methods consume the input and return false when it does not match, in which
+ * case the line should be abandoned. The numbers read are numbered from 0 like the groups of
+ * a regex, and like Integer.valueOf(), a missing or overflowing number is Integer.MAX_VALUE.
+ */
+final class ServiceModeLineReader {
+    private String mLine;
+    private int mLength;
+    private int mPos;
+    private final int[] mNumbers = new int[4];
+    private int mNumberCount;
+
+    ServiceModeLineReader reset(String line) {
+        mLine = line;
+        mLength = line.length();
+        mPos = 0;
+        mNumberCount = 0;
+        return this;
+    }
+
+    boolean atEnd() {
+        return mPos == mLength;
+    }
+
+    /**
+     * Consumes literal if the line continues with it.
+     */
+    boolean expect(String literal) {
+        if (!mLine.startsWith(literal, mPos)) {
+            return false;
+        }
+        mPos += literal.length();
+        return true;
+    }
+
+    boolean expect(char c) {
+        if (mPos == mLength || mLine.charAt(mPos) != c) {
+            return false;
+        }
+        mPos += 1;
+        return true;
+    }
+
+    /**
+     * \s* , always true so that it can be chained with the expect*() methods.
+     */
+    boolean skipSpaces() {
+        while (mPos < mLength && isSpace(mLine.charAt(mPos))) {
+            mPos += 1;
+        }
+        return true;
+    }
+
+    /**
+     * \s+
+     */
+    boolean expectSpaces() {
+        final int start = mPos;
+        skipSpaces();
+        return mPos != start;
+    }
+
+    /**
+     * \s+.+ , the rest of the line being a non-empty value.
+     */
+    boolean expectSpacesAndValue() {
+        if (mPos + 1 >= mLength || !isSpace(mLine.charAt(mPos))) {
+            return false;
+        }
+        mPos = mLength;
+        return true;
+    }
+
+    /**
+     * \-?\d+ (or \d+, or [0-9a-fA-F]+ for radix 16, when not signed)
+     */
+    boolean expectNumber(int radix, boolean signed) {
+        return readNumber(radix, signed, true);
+    }
+
+    /**
+     * \-?\d* (or \d* when not signed), always true
+     */
+    boolean optionalNumber(boolean signed) {
+        return readNumber(10, signed, false);
+    }
+
+    int number(int index) {
+        return mNumbers[index];
+    }
+
+    private boolean readNumber(int radix, boolean signed, boolean required) {
+        final int start = mPos;
+        boolean negative = false;
+        if (signed && mPos < mLength && mLine.charAt(mPos) == '-') {
+            negative = true;
+            mPos += 1;
+        }
+
+        final int digitsStart = mPos;
+        long value = 0;
+        while (mPos < mLength) {
+            final int digit = digit(mLine.charAt(mPos), radix);
+            if (digit < 0) {
+                break;
+            }
+            // Stops accumulating once out of range, the remaining digits are still consumed
+            if (value <= -(long) Integer.MIN_VALUE) {
+                value = value * radix + digit;
+            }
+            mPos += 1;
+        }
+
+        if (mPos == digitsStart) {
+            if (required) {
+                mPos = start;
+                return false;
+            }
+            mNumbers[mNumberCount++] = Integer.MAX_VALUE;
+            return true;
+        }
+
+        if (negative) {
+            value = -value;
+        }
+        mNumbers[mNumberCount++] = (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+                ? Integer.MAX_VALUE : (int) value;
+        return true;
+    }
+
+    private static int digit(char c, int radix) {
+        final int digit;
+        if (c >= '0' && c <= '9') {
+            digit = c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            digit = c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            digit = c - 'A' + 10;
+        } else {
+            return -1;
+        }
+        return digit < radix ? digit : -1;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
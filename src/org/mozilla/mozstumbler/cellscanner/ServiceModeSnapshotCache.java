@@ -0,0 +1,60 @@
+package org.mozilla.mozstumbler.cellscanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The raw service mode screens of the last refresh, to skip parsing the screens again
+ * when the modem returns the same bytes.
+ *
+ * The screens are compared byte for byte: they are a few hundred bytes long, so this costs
+ * no more than hashing them, and a hash collision would leave stale cells.
+ *
+ * Updated on the handler thread. The counters are totals over all the scanners, and can be
+ * read from any thread.
+ */
+final class ServiceModeSnapshotCache {
+    private List<byte[]> mBasicInfo = new ArrayList<byte[]>();
+    private List<byte[]> mNeighbours = new ArrayList<byte[]>();
+
+    // Only written by the handler thread, which all the scanners share
+    private static volatile int sHits;
+    private static volatile int sMisses;
+
+    /**
+     * Keeps the screens for the next call, unless they are unchanged.
+     *
+     * @return true if the screens are the ones of the previous call
+     */
+    boolean isUnchanged(List<byte[]> basicInfo, List<byte[]> neighbours) {
+        if (isSameScreen(basicInfo, mBasicInfo) && isSameScreen(neighbours, mNeighbours)) {
+            sHits++;
+            return true;
+        }
+        mBasicInfo = basicInfo;
+        mNeighbours = neighbours;
+        sMisses++;
+        return false;
+    }
+
+    static int getHits() {
+        return sHits;
+    }
+
+    static int getMisses() {
+        return sMisses;
+    }
+
+    private static boolean isSameScreen(List<byte[]> screen, List<byte[]> lastScreen) {
+        if (screen.size() != lastScreen.size()) {
+            return false;
+        }
+        for (int i = 0; i < screen.size(); i++) {
+            if (!Arrays.equals(screen.get(i), lastScreen.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,7 +1,6 @@
 package org.mozilla.mozstumbler.communicator;
 
 import android.content.Context;
-import android.os.Build;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.BuildConfig;
@@ -10,20 +9,29 @@ import org.mozilla.mozstumbler.PackageUtils;
 import org.mozilla.mozstumbler.R;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.net.URL;
-import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
 
 abstract class AbstractCommunicator {
 
     private static final String LOGTAG = AbstractCommunicator.class.getName();
     private static final String NICKNAME_HEADER = "X-Nickname";
     private static final String USER_AGENT_HEADER = "User-Agent";
+    private static final int MAX_STALE_CONNECTION_RETRIES = 1;
+    private static final int MAX_POOLED_DEFLATERS = 4;
+
+    // Deflaters hold native buffers, keep a few around instead of allocating one per request
+    private static final ArrayList<Deflater> sDeflaters = new ArrayList<Deflater>(MAX_POOLED_DEFLATERS);
+
     private HttpURLConnection httpURLConnection;
     private final String mUserAgent;
     private int mCode;
@@ -52,62 +60,109 @@ abstract class AbstractCommunicator {
         } catch (IOException e) {
             Log.e(LOGTAG, "Couldn't open a connection: " + e);
         }
+        mCode = 0;
         httpURLConnection.setDoOutput(true);
         httpURLConnection.setRequestProperty(USER_AGENT_HEADER, mUserAgent);
         httpURLConnection.setRequestProperty("Content-Type", "application/json");
 
-        // Workaround for a bug in Android HttpURLConnection. When the library
-        // reuses a stale connection, the connection may fail with an EOFException
-        if (Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
-            httpURLConnection.setRequestProperty("Connection", "Close");
-        }
         String nickname = getNickname();
         if (nickname != null) {
             httpURLConnection.setRequestProperty(NICKNAME_HEADER, nickname);
         }
     }
 
-    private byte[] zipData(byte[] data) throws IOException {
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        GZIPOutputStream gstream = null;
-        byte[] output;
-        try {
-            gstream = new GZIPOutputStream(os);
-            gstream.write(data);
-            gstream.finish();
-            output = os.toByteArray();
-        } finally {
-            os.close();
-            if (gstream != null) {
-                gstream.close();
-            }
-        }
-        httpURLConnection.setRequestProperty("Content-Encoding","gzip");
-        return output;
+    private OutputStream openStreamingOutput() throws IOException {
+        httpURLConnection.setChunkedStreamingMode(0);
+        return new BufferedOutputStream(httpURLConnection.getOutputStream());
     }
 
-    private void sendData(byte[] data) throws IOException{
-        httpURLConnection.setFixedLengthStreamingMode(data.length);
-        OutputStream out = new BufferedOutputStream(httpURLConnection.getOutputStream());
-        out.write(data);
-        out.flush();
+    private void checkResponse() throws IOException {
         mCode = httpURLConnection.getResponseCode();
         if (mCode != getCorrectResponse()) {
             throw new HttpErrorException(mCode);
         }
     }
 
-    void send(byte[] data) throws IOException {
+    private void sendBody(RequestBody body, boolean gzip) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            setHeaders();
+            if (gzip) {
+                httpURLConnection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            Deflater deflater = gzip ? obtainDeflater() : null;
+            try {
+                OutputStream out = openStreamingOutput();
+                if (gzip) {
+                    out = new GzipOutputStream(out, deflater);
+                }
+                body.writeTo(out);
+                out.close();
+                checkResponse();
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_STALE_CONNECTION_RETRIES || !isStaleConnection(e)) {
+                    throw e;
+                }
+                Log.w(LOGTAG, "Stale connection, retrying: " + e);
+                disconnect();
+            } finally {
+                if (deflater != null) {
+                    recycleDeflater(deflater);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the request failed because a pooled keep-alive connection had
+     * already been closed by the server, so it is safe to retry on a new connection.
+     */
+    private boolean isStaleConnection(IOException e) {
+        if (mCode != 0) {
+            // The server has answered, the connection was alive
+            return false;
+        }
+        return e instanceof EOFException
+                || (e instanceof SocketException && !(e instanceof ConnectException));
+    }
 
-        setHeaders();
+    void send(RequestBody body) throws IOException {
         try {
-            sendData(zipData(data));
+            sendBody(body, true);
         } catch (IOException e) {
             Log.e(LOGTAG, "Couldn't compress and send data, falling back to plain-text: ", e);
             close();
-            setHeaders();
-            sendData(data);
+            sendBody(body, false);
+        }
+    }
+
+    void send(final byte[] data) throws IOException {
+        send(new RequestBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        });
+    }
+
+    private static Deflater obtainDeflater() {
+        synchronized (sDeflaters) {
+            if (!sDeflaters.isEmpty()) {
+                return sDeflaters.remove(sDeflaters.size() - 1);
+            }
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    private static void recycleDeflater(Deflater deflater) {
+        deflater.reset();
+        synchronized (sDeflaters) {
+            if (sDeflaters.size() < MAX_POOLED_DEFLATERS) {
+                sDeflaters.add(deflater);
+                return;
+            }
         }
+        deflater.end();
     }
 
     InputStream getInputStream() {
@@ -118,14 +173,50 @@ abstract class AbstractCommunicator {
         }
     }
 
+    /**
+     * Releases the connection. When a response has been received, its body is read to the
+     * end and closed, which lets HttpURLConnection keep the socket alive and reuse it for
+     * the next request to the same server. Otherwise the connection is dropped.
+     */
     public void close() {
         if (httpURLConnection == null) {
             return;
         }
-        httpURLConnection.disconnect();
+        if (mCode == 0 || !drainResponse()) {
+            httpURLConnection.disconnect();
+        }
         httpURLConnection = null;
     }
 
+    private void disconnect() {
+        if (httpURLConnection != null) {
+            httpURLConnection.disconnect();
+            httpURLConnection = null;
+        }
+    }
+
+    private boolean drainResponse() {
+        InputStream in = getInputStream();
+        if (in == null) {
+            return true;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     public static class HttpErrorException extends IOException {
         private static final long serialVersionUID = -5404095858043243126L;
         public final int responseCode;
@@ -0,0 +1,79 @@
+package org.mozilla.mozstumbler.communicator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * GZIP output stream over a caller-supplied Deflater.
+ *
+ * Unlike java.util.zip.GZIPOutputStream it does not allocate a new native deflater for
+ * every stream and does not end() the deflater on close(), so one can be reused for many
+ * requests. The deflater must be created with nowrap = true.
+ */
+final class GzipOutputStream extends DeflaterOutputStream {
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // compression method
+            0,                  // flags
+            0, 0, 0, 0,         // modification time
+            0,                  // extra flags
+            (byte) 0xff         // operating system: unknown
+    };
+
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mSingleByte = new byte[1];
+    private boolean mFinished;
+    private boolean mClosed;
+
+    GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+        super(out, deflater, BUFFER_SIZE);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        super.write(buffer, offset, count);
+        mCrc.update(buffer, offset, count);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        super.finish();
+        writeIntLE((int) mCrc.getValue());
+        writeIntLE((int) def.getBytesRead());
+        mFinished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
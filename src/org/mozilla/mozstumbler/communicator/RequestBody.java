@@ -0,0 +1,13 @@
+package org.mozilla.mozstumbler.communicator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request payload that is serialized straight into the connection output stream.
+ * writeTo() may be called more than once (e.g. for the plain-text fallback or for
+ * the additional server), so implementations must be able to replay their content.
+ */
+public interface RequestBody {
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -45,4 +45,15 @@ public class Submitter extends AbstractCommunicator {
         return result;
     }
 
+    public boolean cleanSend(RequestBody body) {
+        boolean result = false;
+        try {
+            this.send(body);
+            result = true;
+        } catch (IOException ex) {
+            Log.e(LOGTAG,"Error submitting: ", ex);
+        }
+        return result;
+    }
+
 }
@@ -3,19 +3,26 @@ package org.mozilla.mozstumbler.provider;
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import org.json.JSONException;
+
 import static org.mozilla.mozstumbler.provider.DatabaseContract.*;
 
 public class Database extends SQLiteOpenHelper {
     private static final String LOGTAG = Database.class.getName();
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 4;
     private static final String DATABASE_NAME = "stumbler.db";
     static final String TABLE_REPORTS = "reports";
     static final String TABLE_STATS = "stats";
+    static final String TABLE_REPORTS_SUMMARY = "reports_summary";
+    private static final String TRIGGER_REPORT_INSERTED = "report_inserted";
+    private static final String TRIGGER_REPORT_DELETED = "report_deleted";
 
     public Database(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -24,6 +31,7 @@ public class Database extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createTableReports(db);
+        createReportsSummary(db);
         db.execSQL("CREATE TABLE " + TABLE_STATS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY,"
                 + StatsColumns.KEY + " VARCHAR(80) UNIQUE NOT NULL,"
@@ -36,6 +44,7 @@ public class Database extends SQLiteOpenHelper {
     }
 
     @Override
+    @SuppressWarnings("fallthrough")
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(LOGTAG, "onUpgrade() from " + oldVersion + " to " + newVersion);
 
@@ -44,12 +53,22 @@ public class Database extends SQLiteOpenHelper {
             case 1:
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_REPORTS);
                 createTableReports(db);
-                version = 2;
+                createReportsSummary(db);
+                version = DATABASE_VERSION;
+                break;
+            case 2:
+                migrateReportsToBinary(db);
+                // fall through
+            case 3:
+                createReportsSummary(db);
+                version = 4;
+                break;
         }
 
         if (version != DATABASE_VERSION) {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_REPORTS);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_REPORTS_SUMMARY);
             onCreate(db);
         }
     }
@@ -63,10 +82,91 @@ public class Database extends SQLiteOpenHelper {
                 + ReportsColumns.ALTITUDE + " INTEGER,"
                 + ReportsColumns.ACCURACY + " INTEGER,"
                 + ReportsColumns.RADIO + " VARCHAR(8) NOT NULL,"
-                + ReportsColumns.CELL + " TEXT NOT NULL,"
-                + ReportsColumns.WIFI + " TEXT NOT NULL,"
+                + ReportsColumns.CELL + " BLOB NOT NULL,"
+                + ReportsColumns.WIFI + " BLOB NOT NULL,"
                 + ReportsColumns.CELL_COUNT + " INTEGER NOT NULL,"
                 + ReportsColumns.WIFI_COUNT + " INTEGER NOT NULL,"
                 + ReportsColumns.RETRY_NUMBER + " INTEGER NOT NULL DEFAULT 0)");
     }
+
+    /**
+     * Creates the single-row summary of the reports table and the triggers keeping it up to date,
+     * so the summary can be read without scanning the reports. The row is initialized from
+     * the current content of the reports table.
+     * max_id is the largest id ever inserted, ids are never reused (AUTOINCREMENT).
+     */
+    private void createReportsSummary(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_REPORT_INSERTED);
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_REPORT_DELETED);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_REPORTS_SUMMARY);
+
+        db.execSQL("CREATE TABLE " + TABLE_REPORTS_SUMMARY + " ("
+                + Reports.TOTAL_OBSERVATION_COUNT + " INTEGER NOT NULL,"
+                + Reports.TOTAL_CELL_COUNT + " INTEGER NOT NULL,"
+                + Reports.TOTAL_WIFI_COUNT + " INTEGER NOT NULL,"
+                + Reports.MAX_ID + " INTEGER NOT NULL)");
+
+        db.execSQL("INSERT INTO " + TABLE_REPORTS_SUMMARY + " SELECT "
+                + "COUNT(" + BaseColumns._ID + "),"
+                + "IFNULL(SUM(" + ReportsColumns.CELL_COUNT + "), 0),"
+                + "IFNULL(SUM(" + ReportsColumns.WIFI_COUNT + "), 0),"
+                + "IFNULL(MAX(" + BaseColumns._ID + "), 0)"
+                + " FROM " + TABLE_REPORTS);
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_REPORT_INSERTED
+                + " AFTER INSERT ON " + TABLE_REPORTS + " BEGIN"
+                + " UPDATE " + TABLE_REPORTS_SUMMARY + " SET "
+                + Reports.TOTAL_OBSERVATION_COUNT + " = " + Reports.TOTAL_OBSERVATION_COUNT + " + 1,"
+                + Reports.TOTAL_CELL_COUNT + " = " + Reports.TOTAL_CELL_COUNT + " + NEW." + ReportsColumns.CELL_COUNT + ","
+                + Reports.TOTAL_WIFI_COUNT + " = " + Reports.TOTAL_WIFI_COUNT + " + NEW." + ReportsColumns.WIFI_COUNT + ","
+                + Reports.MAX_ID + " = MAX(" + Reports.MAX_ID + ", NEW." + BaseColumns._ID + ");"
+                + " END");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_REPORT_DELETED
+                + " AFTER DELETE ON " + TABLE_REPORTS + " BEGIN"
+                + " UPDATE " + TABLE_REPORTS_SUMMARY + " SET "
+                + Reports.TOTAL_OBSERVATION_COUNT + " = " + Reports.TOTAL_OBSERVATION_COUNT + " - 1,"
+                + Reports.TOTAL_CELL_COUNT + " = " + Reports.TOTAL_CELL_COUNT + " - OLD." + ReportsColumns.CELL_COUNT + ","
+                + Reports.TOTAL_WIFI_COUNT + " = " + Reports.TOTAL_WIFI_COUNT + " - OLD." + ReportsColumns.WIFI_COUNT + ";"
+                + " END");
+    }
+
+    /**
+     * Converts the JSON cell and wifi columns of the version 2 schema
+     * to the binary {@link ReportCodec} format.
+     */
+    private void migrateReportsToBinary(SQLiteDatabase db) {
+        final String oldTable = TABLE_REPORTS + "_v2";
+        int converted = 0;
+        int dropped = 0;
+
+        db.execSQL("ALTER TABLE " + TABLE_REPORTS + " RENAME TO " + oldTable);
+        createTableReports(db);
+
+        final Cursor cursor = db.query(oldTable, null, null, null, null, null, BaseColumns._ID);
+        try {
+            final int columnCell = cursor.getColumnIndex(ReportsColumns.CELL);
+            final int columnWifi = cursor.getColumnIndex(ReportsColumns.WIFI);
+            final ContentValues values = new ContentValues(12);
+            while (cursor.moveToNext()) {
+                values.clear();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                try {
+                    values.put(ReportsColumns.CELL, ReportCodec.cellsFromJson(cursor.getString(columnCell)));
+                    values.put(ReportsColumns.WIFI, ReportCodec.wifisFromJson(cursor.getString(columnWifi)));
+                } catch (JSONException jsonex) {
+                    Log.e(LOGTAG, "Dropping unparseable report", jsonex);
+                    dropped += 1;
+                    continue;
+                }
+                db.insertOrThrow(TABLE_REPORTS, null, values);
+                converted += 1;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL("DROP TABLE " + oldTable);
+        Log.i(LOGTAG, "Reports converted: " + converted + " dropped: " + dropped);
+    }
 }
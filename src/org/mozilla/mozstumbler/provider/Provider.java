@@ -16,7 +16,6 @@ import android.provider.BaseColumns;
 import android.support.v4.database.DatabaseUtilsCompat;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import static org.mozilla.mozstumbler.provider.DatabaseContract.*;
@@ -30,7 +29,6 @@ public class Provider extends ContentProvider {
     private static final int SYNC_STATS = 4;
 
     private static final UriMatcher sUriMatcher = buildUriMatcher();
-    private static HashMap<String, String> sReportSummaryProjectionMap = buildReportSummaryProjectionMap();
 
     private Database mDbHelper;
     private int mInsertedObservations;
@@ -47,15 +45,6 @@ public class Provider extends ContentProvider {
         return matcher;
     }
 
-    private static HashMap<String, String> buildReportSummaryProjectionMap() {
-        final HashMap<String, String> map = new HashMap<String, String>();
-        map.put(Reports.TOTAL_CELL_COUNT, "SUM(" + Reports.CELL_COUNT + ") AS " + Reports.TOTAL_CELL_COUNT);
-        map.put(Reports.TOTAL_WIFI_COUNT, "SUM(" + Reports.WIFI_COUNT + ") AS " + Reports.TOTAL_WIFI_COUNT);
-        map.put(Reports.TOTAL_OBSERVATION_COUNT, "COUNT(" + Reports._ID + ") AS " + Reports.TOTAL_OBSERVATION_COUNT);
-        map.put(Reports.MAX_ID, "MAX(" + Reports._ID + ") AS " + Reports.MAX_ID);
-        return map;
-    }
-
     @Override
     public boolean onCreate() {
         mDbHelper = new Database(getContext());
@@ -88,7 +77,7 @@ public class Provider extends ContentProvider {
                 cursor = getReports(projection, selection, selectionArgs, sortOrder, limit);
                 break;
             case REPORTS_SUMMARY:
-                cursor = getReportsSummary();
+                cursor = getReportsSummary(projection);
                 cursor.setNotificationUri(getContext().getContentResolver(), Reports.CONTENT_URI_SUMMARY);
                 break;
             case SYNC_STATS:
@@ -128,12 +117,7 @@ public class Provider extends ContentProvider {
                 db = mDbHelper.getWritableDatabase();
                 rowId = db.insertOrThrow(Database.TABLE_REPORTS, null, values);
                 if (rowId >= 0) {
-                    final ContentResolver resolver = getContext().getContentResolver();
-                    mInsertedObservations = (mInsertedObservations + 1) % SYNC_OBSERVATIONS_PERIOD;
-                    if (mInsertedObservations == 0) {
-                        resolver.notifyChange(uri, null, true);
-                    }
-                    resolver.notifyChange(Reports.CONTENT_URI_SUMMARY, null, false);
+                    onReportsInserted(uri, 1);
                 }
                 return ContentUris.withAppendedId(uri, rowId);
             default:
@@ -141,6 +125,47 @@ public class Provider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts all reports in a single transaction and sends one change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db;
+        int inserted = 0;
+
+        switch (sUriMatcher.match(uri)) {
+            case REPORTS:
+                db = mDbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (ContentValues v : values) {
+                        if (db.insertOrThrow(Database.TABLE_REPORTS, null, v) >= 0) {
+                            inserted += 1;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (inserted > 0) {
+                    onReportsInserted(uri, inserted);
+                }
+                return inserted;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+    }
+
+    private void onReportsInserted(Uri uri, int count) {
+        final ContentResolver resolver = getContext().getContentResolver();
+        final int total = mInsertedObservations + count;
+        mInsertedObservations = total % SYNC_OBSERVATIONS_PERIOD;
+        if (total >= SYNC_OBSERVATIONS_PERIOD) {
+            resolver.notifyChange(uri, null, true);
+        }
+        resolver.notifyChange(Reports.CONTENT_URI_SUMMARY, null, false);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db;
@@ -226,11 +251,13 @@ public class Provider extends ContentProvider {
                 sortOrder == null ? Reports.DEFAULT_SORT : sortOrder, limit);
     }
 
-    private Cursor getReportsSummary() {
+    /**
+     * The summary is a single row maintained by triggers on the reports table, see {@link Database}.
+     */
+    private Cursor getReportsSummary(String[] projection) {
         final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
-        builder.setTables(Database.TABLE_REPORTS);
-        builder.setProjectionMap(sReportSummaryProjectionMap);
-        return builder.query(mDbHelper.getReadableDatabase(), null, null, null, null, null, null);
+        builder.setTables(Database.TABLE_REPORTS_SUMMARY);
+        return builder.query(mDbHelper.getReadableDatabase(), projection, null, null, null, null, null);
     }
 
     private Cursor getSyncStats(String[] projection) {
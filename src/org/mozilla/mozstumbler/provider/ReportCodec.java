@@ -0,0 +1,370 @@
+package org.mozilla.mozstumbler.provider;
+
+import android.telephony.TelephonyManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.cellscanner.CellInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of the cell and wifi columns of the reports table.
+ *
+ * Wifi blob: a sequence of variable-length records
+ * <pre>
+ *   6 bytes  BSSID
+ *   short    frequency
+ *   short    signal, the strongest of the sightings
+ *   int      age: ms from the last sighting to the observation time, negative if after it
+ *   ushort   number of sightings (0 if unknown)
+ *   ubyte    SSID length ({@link #NO_SSID} if unknown), followed by the UTF-8 SSID bytes
+ *   ushort   capabilities length, followed by the UTF-8 capabilities bytes
+ * </pre>
+ *
+ * Cell blob: a sequence of fixed-width records of {@link #CELL_RECORD_SIZE} bytes:
+ * cell radio, network type, mcc, mnc, lac, cid, signal, asu, ta, psc as ints.
+ *
+ * Blobs are only decoded at upload time, straight into the submit JSON.
+ */
+public final class ReportCodec {
+    public static final int CELL_RECORD_SIZE = 10 * 4;
+    public static final int WIFI_RECORD_SIZE_HINT = 54;
+
+    private static final String CHARSET = "UTF-8";
+    private static final String UNKNOWN_SSID = "<unknown ssid>";
+    // Keeps an unknown SSID apart from an empty (hidden) one
+    private static final int NO_SSID = 0xff;
+    private static final int MAX_SSID_LENGTH = NO_SSID - 1;
+    private static final int MAX_CAPABILITIES_LENGTH = 0xffff;
+    private static final int MAX_SIGNAL_COUNT = 0xffff;
+
+    private static final int CELL_RADIO_GSM = 0;
+    private static final int CELL_RADIO_UMTS = 1;
+    private static final int CELL_RADIO_CDMA = 2;
+    private static final int CELL_RADIO_LTE = 3;
+    private static final int CELL_RADIO_OTHER = 4;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ReportCodec() {
+    }
+
+    /**
+     * Reusable encoder for a single cell or wifi blob.
+     */
+    public static final class BlobWriter {
+        private final ByteArrayOutputStream mBuffer;
+        private final DataOutputStream mOut;
+        private int mCount;
+
+        public BlobWriter(int initialSize) {
+            mBuffer = new ByteArrayOutputStream(initialSize);
+            mOut = new DataOutputStream(mBuffer);
+        }
+
+        public void reset() {
+            mBuffer.reset();
+            mCount = 0;
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        public byte[] toByteArray() {
+            return mBuffer.toByteArray();
+        }
+
+        /**
+         * @param age ms from the last sighting to the observation time
+         * @param signalCount number of sightings, 0 if unknown
+         */
+        public void putWifi(long bssid, int frequency, int signal, int age, int signalCount,
+                            String ssid, String capabilities) {
+            try {
+                writeBssid(mOut, bssid);
+                mOut.writeShort(frequency);
+                mOut.writeShort(signal);
+                mOut.writeInt(age);
+                mOut.writeShort(Math.min(signalCount, MAX_SIGNAL_COUNT));
+                if (ssid == null || UNKNOWN_SSID.equals(ssid)) {
+                    mOut.writeByte(NO_SSID);
+                } else {
+                    writeString(mOut, ssid, MAX_SSID_LENGTH, false);
+                }
+                writeString(mOut, capabilities == null ? "" : capabilities, MAX_CAPABILITIES_LENGTH, true);
+            } catch (IOException ioe) {
+                // ByteArrayOutputStream never throws
+                throw new IllegalStateException(ioe);
+            }
+            mCount += 1;
+        }
+
+        public void putCell(CellInfo cell) {
+            try {
+                mOut.writeInt(cellRadioToCode(cell.getCellRadio()));
+                mOut.writeInt(cell.getCellNetworkType());
+                mOut.writeInt(cell.getMcc());
+                mOut.writeInt(cell.getMnc());
+                mOut.writeInt(cell.getLac());
+                mOut.writeInt(cell.getCid());
+                mOut.writeInt(cell.getSignal());
+                mOut.writeInt(cell.getAsu());
+                mOut.writeInt(cell.getTa());
+                mOut.writeInt(cell.getPsc());
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+            mCount += 1;
+        }
+    }
+
+    /**
+     * Parses a canonical (12 lowercase hex digits) BSSID.
+     *
+     * @return BSSID packed into the lower 48 bits, or -1 if the string is not canonical
+     */
+    public static long bssidToLong(String bssid) {
+        if (bssid == null || bssid.length() != 12) {
+            return -1;
+        }
+        long res = 0;
+        for (int i = 0; i < 12; ++i) {
+            final char c = bssid.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+            res = (res << 4) | digit;
+        }
+        return res;
+    }
+
+    /**
+     * Writes the wifi blob as a submit API JSON array.
+     */
+    public static void writeWifisJson(byte[] blob, Writer w) throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(blob);
+        boolean first = true;
+
+        w.write('[');
+        while (bb.hasRemaining()) {
+            if (!first) w.write(',');
+            first = false;
+
+            final long bssid = readBssid(bb);
+            final int frequency = bb.getShort();
+            final int signal = bb.getShort();
+            final int age = bb.getInt();
+            final int signalCount = bb.getShort() & 0xffff;
+            final int ssidLength = bb.get() & 0xff;
+            final String ssid = ssidLength == NO_SSID ? null : readString(bb, ssidLength);
+            final String capabilities = readString(bb, bb.getShort() & 0xffff);
+
+            w.write("{\"key\":\"");
+            writeBssidHex(w, bssid);
+            w.write("\",\"frequency\":");
+            w.write(String.valueOf(frequency));
+            w.write(",\"signal\":");
+            w.write(String.valueOf(signal));
+            if (signalCount != 0) {
+                w.write(",\"age\":");
+                w.write(String.valueOf(age));
+                w.write(",\"signalCount\":");
+                w.write(String.valueOf(signalCount));
+            }
+            if (ssid != null) {
+                w.write(",\"ssid\":");
+                w.write(JSONObject.quote(ssid));
+            }
+            w.write(",\"capabilities\":");
+            w.write(JSONObject.quote(capabilities));
+            w.write('}');
+        }
+        w.write(']');
+    }
+
+    /**
+     * Writes the cell blob as a submit API JSON array.
+     */
+    public static void writeCellsJson(byte[] blob, Writer w) throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(blob);
+        boolean first = true;
+
+        if (blob.length % CELL_RECORD_SIZE != 0) {
+            throw new IOException("Corrupted cell record. Length: " + blob.length);
+        }
+
+        w.write('[');
+        while (bb.hasRemaining()) {
+            if (!first) w.write(',');
+            first = false;
+
+            final int cellRadio = bb.getInt();
+            final int networkType = bb.getInt();
+            final int mcc = bb.getInt();
+            final int mnc = bb.getInt();
+            final int lac = bb.getInt();
+            final int cid = bb.getInt();
+            final int signal = bb.getInt();
+            final int asu = bb.getInt();
+            final int ta = bb.getInt();
+            final int psc = bb.getInt();
+
+            w.write("{\"radio\":");
+            w.write(JSONObject.quote(codeToCellRadio(cellRadio, networkType)));
+            w.write(",\"network_type\":");
+            w.write(JSONObject.quote(CellInfo.getNetworkTypeName(networkType)));
+            w.write(",\"mcc\":");
+            w.write(String.valueOf(mcc));
+            w.write(",\"mnc\":");
+            w.write(String.valueOf(mnc));
+            writeOptionalInt(w, "lac", lac, CellInfo.UNKNOWN_CID);
+            writeOptionalInt(w, "cid", cid, CellInfo.UNKNOWN_CID);
+            writeOptionalInt(w, "signal", signal, CellInfo.UNKNOWN_SIGNAL);
+            writeOptionalInt(w, "asu", asu, CellInfo.UNKNOWN_SIGNAL);
+            writeOptionalInt(w, "ta", ta, CellInfo.UNKNOWN_CID);
+            writeOptionalInt(w, "psc", psc, CellInfo.UNKNOWN_CID);
+            w.write('}');
+        }
+        w.write(']');
+    }
+
+    /**
+     * Converts the JSON wifi column of the version 2 schema.
+     */
+    static byte[] wifisFromJson(String json) throws JSONException {
+        final JSONArray array = new JSONArray(json);
+        final BlobWriter writer = new BlobWriter(array.length() * WIFI_RECORD_SIZE_HINT);
+        for (int i = 0; i < array.length(); ++i) {
+            final JSONObject item = array.getJSONObject(i);
+            final long bssid = bssidToLong(item.getString("key"));
+            if (bssid < 0) {
+                continue;
+            }
+            writer.putWifi(bssid,
+                    item.optInt("frequency", 0),
+                    item.optInt("signal", 0),
+                    0, 0, // Not recorded by the version 2 schema
+                    item.optString("ssid", null),
+                    item.optString("capabilities", ""));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Converts the JSON cell column of the version 2 schema.
+     */
+    static byte[] cellsFromJson(String json) throws JSONException {
+        final JSONArray array = new JSONArray(json);
+        final ByteBuffer bb = ByteBuffer.allocate(array.length() * CELL_RECORD_SIZE);
+        for (int i = 0; i < array.length(); ++i) {
+            final JSONObject item = array.getJSONObject(i);
+            bb.putInt(cellRadioToCode(item.optString("radio")));
+            bb.putInt(networkTypeFromName(item.optString("network_type")));
+            bb.putInt(item.optInt("mcc", CellInfo.UNKNOWN_CID));
+            bb.putInt(item.optInt("mnc", CellInfo.UNKNOWN_CID));
+            bb.putInt(item.optInt("lac", CellInfo.UNKNOWN_CID));
+            bb.putInt(item.optInt("cid", CellInfo.UNKNOWN_CID));
+            bb.putInt(item.optInt("signal", CellInfo.UNKNOWN_SIGNAL));
+            bb.putInt(item.optInt("asu", CellInfo.UNKNOWN_SIGNAL));
+            bb.putInt(item.optInt("ta", CellInfo.UNKNOWN_CID));
+            bb.putInt(item.optInt("psc", CellInfo.UNKNOWN_CID));
+        }
+        return bb.array();
+    }
+
+    private static int networkTypeFromName(String name) {
+        for (int type = 1; type < 32; ++type) {
+            if (CellInfo.getNetworkTypeName(type).equals(name)) {
+                return type;
+            }
+        }
+        return TelephonyManager.NETWORK_TYPE_UNKNOWN;
+    }
+
+    private static int cellRadioToCode(String cellRadio) {
+        if (CellInfo.CELL_RADIO_GSM.equals(cellRadio)) {
+            return CELL_RADIO_GSM;
+        } else if (CellInfo.CELL_RADIO_UMTS.equals(cellRadio)) {
+            return CELL_RADIO_UMTS;
+        } else if (CellInfo.CELL_RADIO_CDMA.equals(cellRadio)) {
+            return CELL_RADIO_CDMA;
+        } else if (CellInfo.CELL_RADIO_LTE.equals(cellRadio)) {
+            return CELL_RADIO_LTE;
+        }
+        return CELL_RADIO_OTHER;
+    }
+
+    private static String codeToCellRadio(int code, int networkType) {
+        switch (code) {
+            case CELL_RADIO_GSM:
+                return CellInfo.CELL_RADIO_GSM;
+            case CELL_RADIO_UMTS:
+                return CellInfo.CELL_RADIO_UMTS;
+            case CELL_RADIO_CDMA:
+                return CellInfo.CELL_RADIO_CDMA;
+            case CELL_RADIO_LTE:
+                return CellInfo.CELL_RADIO_LTE;
+            default:
+                // Same as CellInfo.getCellRadioTypeName() for unexpected network types
+                return networkType == TelephonyManager.NETWORK_TYPE_UNKNOWN
+                        ? "unknown" : String.valueOf(networkType);
+        }
+    }
+
+    private static void writeOptionalInt(Writer w, String key, int value, int unknownValue)
+            throws IOException {
+        if (value == unknownValue) return;
+        w.write(",\"");
+        w.write(key);
+        w.write("\":");
+        w.write(String.valueOf(value));
+    }
+
+    private static void writeBssid(DataOutputStream out, long bssid) throws IOException {
+        out.writeShort((int) (bssid >>> 32));
+        out.writeInt((int) bssid);
+    }
+
+    private static long readBssid(ByteBuffer bb) {
+        final long hi = bb.getShort() & 0xffffL;
+        final long lo = bb.getInt() & 0xffffffffL;
+        return (hi << 32) | lo;
+    }
+
+    private static void writeBssidHex(Writer w, long bssid) throws IOException {
+        for (int shift = 44; shift >= 0; shift -= 4) {
+            w.write(HEX_DIGITS[(int) (bssid >>> shift) & 0xf]);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s, int maxLength, boolean shortLength)
+            throws IOException {
+        byte[] bytes = s.getBytes(CHARSET);
+        int length = Math.min(bytes.length, maxLength);
+        if (shortLength) {
+            out.writeShort(length);
+        } else {
+            out.writeByte(length);
+        }
+        out.write(bytes, 0, length);
+    }
+
+    private static String readString(ByteBuffer bb, int length) throws IOException {
+        if (length == 0) return "";
+        final String res = new String(bb.array(), bb.position(), length, CHARSET);
+        bb.position(bb.position() + length);
+        return res;
+    }
+}
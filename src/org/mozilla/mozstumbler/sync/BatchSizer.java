@@ -0,0 +1,52 @@
+package org.mozilla.mozstumbler.sync;
+
+/**
+ * Chooses how much data goes into one submit request.
+ *
+ * The size of a batch is expressed as an estimated payload size in bytes. It grows
+ * additively while requests complete quickly and is halved when a request fails or
+ * takes too long (AIMD). The number of rows queried for the next batch is derived
+ * from the average size of the rows seen so far.
+ */
+final class BatchSizer {
+    static final int MIN_BATCH_BYTES = 16 * 1024;
+    static final int MAX_BATCH_BYTES = 1024 * 1024;
+    static final int MAX_BATCH_ROWS = 500;
+
+    private static final int INITIAL_BATCH_BYTES = 64 * 1024;
+    private static final int ADDITIVE_STEP_BYTES = 32 * 1024;
+    private static final long SLOW_REQUEST_MS = 10000;
+    private static final int INITIAL_ROW_BYTES = 2 * 1024;
+
+    private int mBudget = INITIAL_BATCH_BYTES;
+    private int mAverageRowBytes = INITIAL_ROW_BYTES;
+
+    /** Estimated payload size the next batch should not exceed. */
+    int getByteBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Number of rows to query for the next batch. Slightly more rows than the budget
+     * needs are requested, the batch is cut at the budget when it is read.
+     */
+    int getRowLimit() {
+        int rows = mBudget / mAverageRowBytes;
+        rows += rows / 4 + 1;
+        return Math.min(rows, MAX_BATCH_ROWS);
+    }
+
+    void onBatchPrepared(ReportBatch batch) {
+        int rowBytes = (int) (batch.estimatedBytes / batch.observations);
+        // Exponential moving average, new batches weigh 1/4
+        mAverageRowBytes = Math.max(1, (3 * mAverageRowBytes + rowBytes) / 4);
+    }
+
+    void onBatchSent(boolean success, long elapsedMs) {
+        if (success && elapsedMs < SLOW_REQUEST_MS) {
+            mBudget = Math.min(mBudget + ADDITIVE_STEP_BYTES, MAX_BATCH_BYTES);
+        } else {
+            mBudget = Math.max(mBudget / 2, MIN_BATCH_BYTES);
+        }
+    }
+}
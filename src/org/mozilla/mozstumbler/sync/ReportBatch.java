@@ -0,0 +1,193 @@
+package org.mozilla.mozstumbler.sync;
+
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.mozstumbler.DateTimeUtils;
+import org.mozilla.mozstumbler.communicator.RequestBody;
+import org.mozilla.mozstumbler.provider.ReportCodec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.mozilla.mozstumbler.provider.DatabaseContract.*;
+
+/**
+ * A batch of queued reports copied out of the database, written as a submit request body.
+ *
+ * Rows are read once when the batch is prepared, so the cursor can be closed before
+ * the batch is sent and several batches can be in flight at the same time.
+ * The binary cell and wifi columns are decoded straight into the output,
+ * without building intermediate JSON objects.
+ */
+final class ReportBatch implements RequestBody {
+    private static final String CHARSET = "UTF-8";
+    private static final int NO_VALUE = Integer.MIN_VALUE;
+
+    // Rough size of the JSON written for one report, one cell and one wifi
+    private static final int REPORT_JSON_BYTES = 150;
+    private static final int CELL_JSON_BYTES = 130;
+    private static final int WIFI_JSON_BYTES = 110;
+
+    final int observations;
+    final int wifis;
+    final int cells;
+    final long estimatedBytes;
+
+    private final long[] mIds;
+    private final int[] mRetries;
+    private final long[] mTimes;
+    private final double[] mLats;
+    private final double[] mLons;
+    private final int[] mAltitudes;
+    private final int[] mAccuracies;
+    private final String[] mRadios;
+    private final byte[][] mCells;
+    private final byte[][] mWifis;
+
+    private ReportBatch(int size, int wifis, int cells, long estimatedBytes) {
+        this.observations = size;
+        this.wifis = wifis;
+        this.cells = cells;
+        this.estimatedBytes = estimatedBytes;
+        mIds = new long[size];
+        mRetries = new int[size];
+        mTimes = new long[size];
+        mLats = new double[size];
+        mLons = new double[size];
+        mAltitudes = new int[size];
+        mAccuracies = new int[size];
+        mRadios = new String[size];
+        mCells = new byte[size][];
+        mWifis = new byte[size][];
+    }
+
+    /**
+     * Copies rows of the cursor into a new batch until the estimated payload size
+     * reaches byteBudget. The first row is always taken.
+     *
+     * @return the batch, or null if the cursor is empty
+     */
+    static ReportBatch fromCursor(Cursor cursor, long byteBudget) {
+
+        int columnId = cursor.getColumnIndex(Reports._ID);
+        int columnRetry = cursor.getColumnIndex(Reports.RETRY_NUMBER);
+        int columnTime = cursor.getColumnIndex(Reports.TIME);
+        int columnLat = cursor.getColumnIndex(Reports.LAT);
+        int columnLon = cursor.getColumnIndex(Reports.LON);
+        int columnAltitude = cursor.getColumnIndex(Reports.ALTITUDE);
+        int columnAccuracy = cursor.getColumnIndex(Reports.ACCURACY);
+        int columnRadio = cursor.getColumnIndex(Reports.RADIO);
+        int columnCell = cursor.getColumnIndex(Reports.CELL);
+        int columnWifi = cursor.getColumnIndex(Reports.WIFI);
+        int columnCellCount = cursor.getColumnIndex(Reports.CELL_COUNT);
+        int columnWifiCount = cursor.getColumnIndex(Reports.WIFI_COUNT);
+
+        int size = 0;
+        int wifiCount = 0;
+        int cellCount = 0;
+        long bytes = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int cells = cursor.getInt(columnCellCount);
+            int wifis = cursor.getInt(columnWifiCount);
+            long rowBytes = estimateSize(cells, wifis);
+            if (size > 0 && bytes + rowBytes > byteBudget) {
+                break;
+            }
+            cellCount += cells;
+            wifiCount += wifis;
+            bytes += rowBytes;
+            size += 1;
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        ReportBatch batch = new ReportBatch(size, wifiCount, cellCount, bytes);
+        int i = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && i < size) {
+            batch.mIds[i] = cursor.getLong(columnId);
+            batch.mRetries[i] = cursor.getInt(columnRetry);
+            batch.mTimes[i] = cursor.getLong(columnTime);
+            batch.mLats[i] = cursor.getDouble(columnLat);
+            batch.mLons[i] = cursor.getDouble(columnLon);
+            batch.mAltitudes[i] = cursor.isNull(columnAltitude) ? NO_VALUE : cursor.getInt(columnAltitude);
+            batch.mAccuracies[i] = cursor.isNull(columnAccuracy) ? NO_VALUE : cursor.getInt(columnAccuracy);
+            batch.mRadios[i] = cursor.getString(columnRadio);
+            batch.mCells[i] = cursor.getBlob(columnCell);
+            batch.mWifis[i] = cursor.getBlob(columnWifi);
+            i += 1;
+        }
+
+        return batch;
+    }
+
+    static long estimateSize(int cells, int wifis) {
+        return REPORT_JSON_BYTES + (long) cells * CELL_JSON_BYTES + (long) wifis * WIFI_JSON_BYTES;
+    }
+
+    long getMinId() {
+        return mIds[0];
+    }
+
+    long getMaxId() {
+        return mIds[observations - 1];
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    int getRetryNumber(int position) {
+        return mRetries[position];
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+
+        w.write("{\"items\":[");
+        for (int i = 0; i < observations; i++) {
+            if (i != 0) w.write(',');
+
+            w.write("{\"time\":");
+            w.write(JSONObject.quote(DateTimeUtils.formatTime(mTimes[i])));
+            w.write(",\"lat\":");
+            w.write(numberToString(mLats[i]));
+            w.write(",\"lon\":");
+            w.write(numberToString(mLons[i]));
+            if (mAltitudes[i] != NO_VALUE) {
+                w.write(",\"altitude\":");
+                w.write(String.valueOf(mAltitudes[i]));
+            }
+            if (mAccuracies[i] != NO_VALUE) {
+                w.write(",\"accuracy\":");
+                w.write(String.valueOf(mAccuracies[i]));
+            }
+            w.write(",\"radio\":");
+            w.write(JSONObject.quote(mRadios[i]));
+            w.write(",\"cell\":");
+            ReportCodec.writeCellsJson(mCells[i], w);
+            w.write(",\"wifi\":");
+            ReportCodec.writeWifisJson(mWifis[i], w);
+            w.write('}');
+        }
+        w.write("]}");
+        w.flush();
+    }
+
+    private static String numberToString(double value) throws IOException {
+        try {
+            return JSONObject.numberToString(value);
+        } catch (JSONException jsonex) {
+            throw new IOException("Invalid coordinate: " + value);
+        }
+    }
+}
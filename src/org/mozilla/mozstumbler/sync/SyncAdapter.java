@@ -14,15 +14,13 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.conn.ConnectTimeoutException;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.mozstumbler.BuildConfig;
-import org.mozilla.mozstumbler.DateTimeUtils;
 import org.mozilla.mozstumbler.NetworkUtils;
+import org.mozilla.mozstumbler.communicator.RequestBody;
 import org.mozilla.mozstumbler.communicator.Submitter;
 import org.mozilla.mozstumbler.preferences.Prefs;
 import org.mozilla.mozstumbler.provider.DatabaseContract;
@@ -31,39 +29,40 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.mozilla.mozstumbler.provider.DatabaseContract.*;
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
     static final String SYNC_EXTRAS_IGNORE_WIFI_STATUS = "org.mozilla.mozstumbler.sync.ignore_wifi_status";
+    static final String SYNC_EXTRAS_MAX_IN_FLIGHT_REQUESTS = "org.mozilla.mozstumbler.sync.max_in_flight_requests";
 
     private static final String LOGTAG = SyncAdapter.class.getName();
     private static final boolean DBG = BuildConfig.DEBUG;
-    private static final int REQUEST_BATCH_SIZE = 50;
     private static final int MAX_RETRY_COUNT = 50;
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 2;
 
     private final ContentResolver mContentResolver;
     private final Prefs mPrefs;
+    private final BatchSizer mBatchSizer = new BatchSizer();
 
     private boolean isMirrorEnabled;
     private URL mMirrorUrl;
 
-    private static class BatchRequestStats {
-        final byte[] body;
-        final int wifis;
-        final int cells;
-        final int observations;
-        final long minId;
-        final long maxId;
-
-        BatchRequestStats(byte[] body, int wifis, int cells, int observations, long minId, long maxId) {
-            this.body = body;
-            this.wifis = wifis;
-            this.cells = cells;
-            this.observations = observations;
-            this.minId = minId;
-            this.maxId = maxId;
+    private static class PendingBatch {
+        final UploadTask task;
+        final ReportBatch batch;
+        final Future<Boolean> result;
+
+        PendingBatch(UploadTask task, Future<Boolean> result) {
+            this.task = task;
+            this.batch = task.mBatch;
+            this.result = result;
         }
     }
 
@@ -92,11 +91,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     public void onPerformSync(Account account, Bundle extras, String authority,
                               ContentProviderClient provider, SyncResult syncResult) {
         final boolean ignoreNetworkStatus = extras.getBoolean(SYNC_EXTRAS_IGNORE_WIFI_STATUS, false);
-        uploadReports(ignoreNetworkStatus, syncResult);
+        final int maxInFlight = Math.max(1,
+                extras.getInt(SYNC_EXTRAS_MAX_IN_FLIGHT_REQUESTS, DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+        uploadReports(ignoreNetworkStatus, maxInFlight, syncResult);
         Log.i(LOGTAG, "Network synchronization complete");
     }
 
-    private void uploadReports(boolean ignoreNetworkStatus, SyncResult syncResult) {
+    /**
+     * Uploads the queued reports. Up to maxInFlight batches are sent at the same time, and
+     * the next batch is read from the database while the previous ones are on the wire.
+     * Results are acknowledged strictly in id order.
+     */
+    private void uploadReports(boolean ignoreNetworkStatus, int maxInFlight, SyncResult syncResult) {
         long uploadedObservations = 0;
         long uploadedCells = 0;
         long uploadedWifis = 0;
@@ -119,47 +125,61 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             }
         }
 
-        Uri uri = Reports.CONTENT_URI.buildUpon()
-                .appendQueryParameter("limit", String.valueOf(REQUEST_BATCH_SIZE))
-                .build();
         queueMinId = 0;
         queueMaxId = getMaxId();
-        Submitter submitter = new Submitter(getContext());
-        for (; queueMinId < queueMaxId; ) {
-            BatchRequestStats batch = null;
-            Cursor cursor = mContentResolver.query(uri, null,
-                    Reports._ID + " > ? AND " + Reports._ID + " <= ?",
-                    new String[]{String.valueOf(queueMinId), String.valueOf(queueMaxId)},
-                    Reports._ID);
-            if (cursor == null) {
-                break;
-            }
 
-            try {
-                batch = getRequestBody(cursor);
-                if (batch == null) {
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+        LinkedList<PendingBatch> pending = new LinkedList<PendingBatch>();
+        try {
+            for (;;) {
+                // Keep one prepared batch queued behind the ones being sent
+                while (queueMinId < queueMaxId && pending.size() <= maxInFlight) {
+                    ReportBatch batch = queryBatch(queueMinId, queueMaxId);
+                    if (batch == null) {
+                        queueMinId = queueMaxId;
+                        break;
+                    }
+                    mBatchSizer.onBatchPrepared(batch);
+                    UploadTask task = new UploadTask(batch);
+                    pending.add(new PendingBatch(task, executor.submit(task)));
+                    queueMinId = batch.getMaxId();
+                }
+
+                // Left in the list while waiting, for the interrupt handler
+                PendingBatch head = pending.peek();
+                if (head == null) {
                     break;
                 }
 
-                if (uploadReportMirror(batch.body) && submitter.cleanSend(batch.body)) {
-                    deleteObservations(batch.minId, batch.maxId);
-                    uploadedObservations += batch.observations;
-                    uploadedWifis += batch.wifis;
-                    uploadedCells += batch.cells;
+                boolean success = waitForUpload(head);
+                pending.poll();
+                mBatchSizer.onBatchSent(success, head.task.getElapsedTime());
+                if (success) {
+                    deleteObservations(head.batch.getMinId(), head.batch.getMaxId());
+                    uploadedObservations += head.batch.observations;
+                    uploadedWifis += head.batch.wifis;
+                    uploadedCells += head.batch.cells;
                 } else {
                     syncResult.stats.numIoExceptions += 1;
-                    increaseRetryCounter(cursor, syncResult);
+                    increaseRetryCounter(head.batch, syncResult);
                 }
-            } finally {
-                cursor.close();
-                submitter.close();
             }
-
-            if (batch != null) {
-                queueMinId = batch.maxId;
-            } else {
-                queueMinId += REQUEST_BATCH_SIZE;
+        } catch (InterruptedException e) {
+            Log.i(LOGTAG, "Upload interrupted");
+            // The batches already accepted by the server must not be sent again
+            for (PendingBatch p : pending) {
+                if (isUploaded(p)) {
+                    deleteObservations(p.batch.getMinId(), p.batch.getMaxId());
+                    uploadedObservations += p.batch.observations;
+                    uploadedWifis += p.batch.wifis;
+                    uploadedCells += p.batch.cells;
+                } else {
+                    p.result.cancel(true);
+                }
             }
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
 
         try {
@@ -189,61 +209,47 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return 0;
     }
 
-    private BatchRequestStats getRequestBody(Cursor cursor) {
-        int wifiCount = 0;
-        int cellCount = 0;
-        JSONArray items = new JSONArray();
-
-        int columnId = cursor.getColumnIndex(Reports._ID);
-        int columnTime = cursor.getColumnIndex(Reports.TIME);
-        int columnLat = cursor.getColumnIndex(Reports.LAT);
-        int columnLon = cursor.getColumnIndex(Reports.LON);
-        int columnAltitude = cursor.getColumnIndex(Reports.ALTITUDE);
-        int columnAccuracy = cursor.getColumnIndex(Reports.ACCURACY);
-        int columnRadio = cursor.getColumnIndex(Reports.RADIO);
-        int columnCell = cursor.getColumnIndex(Reports.CELL);
-        int columnWifi = cursor.getColumnIndex(Reports.WIFI);
-        int columnCellCount = cursor.getColumnIndex(Reports.CELL_COUNT);
-        int columnWifiCount = cursor.getColumnIndex(Reports.WIFI_COUNT);
-
-        cursor.moveToPosition(-1);
+    private ReportBatch queryBatch(long minId, long maxId) {
+        Uri uri = Reports.CONTENT_URI.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(mBatchSizer.getRowLimit()))
+                .build();
+        Cursor cursor = mContentResolver.query(uri, null,
+                Reports._ID + " > ? AND " + Reports._ID + " <= ?",
+                new String[]{String.valueOf(minId), String.valueOf(maxId)},
+                Reports._ID);
+        if (cursor == null) {
+            return null;
+        }
         try {
-            while (cursor.moveToNext()) {
-                JSONObject item = new JSONObject();
-                item.put("time", DateTimeUtils.formatTime(cursor.getLong(columnTime)));
-                item.put("lat", cursor.getDouble(columnLat));
-                item.put("lon", cursor.getDouble(columnLon));
-                if (!cursor.isNull(columnAltitude)) {
-                    item.put("altitude", cursor.getInt(columnAltitude));
-                }
-                if (!cursor.isNull(columnAccuracy)) {
-                    item.put("accuracy", cursor.getInt(columnAccuracy));
-                }
-                item.put("radio", cursor.getString(columnRadio));
-                item.put("cell", new JSONArray(cursor.getString(columnCell)));
-                item.put("wifi", new JSONArray(cursor.getString(columnWifi)));
-                items.put(item);
-
-                cellCount += cursor.getInt(columnCellCount);
-                wifiCount += cursor.getInt(columnWifiCount);
-            }
-        } catch (JSONException jsonex) {
-            Log.e(LOGTAG, "JSONException", jsonex);
+            return ReportBatch.fromCursor(cursor, mBatchSizer.getByteBudget());
+        } finally {
+            cursor.close();
         }
+    }
 
-        if (items.length() == 0) {
-            return null;
+    private boolean waitForUpload(PendingBatch pending) throws InterruptedException {
+        try {
+            return pending.result.get();
+        } catch (ExecutionException e) {
+            Log.e(LOGTAG, "Upload failed", e.getCause());
+            return false;
         }
+    }
 
-        long minId, maxId;
-        cursor.moveToFirst();
-        minId = cursor.getLong(columnId);
-        cursor.moveToLast();
-        maxId = cursor.getLong(columnId);
-
-        JSONObject wrapper = new JSONObject(Collections.singletonMap("items", items));
-        return new BatchRequestStats(wrapper.toString().getBytes(),
-                wifiCount, cellCount, items.length(), minId, maxId);
+    /**
+     * @return true if the upload has completed successfully, without waiting
+     */
+    private boolean isUploaded(PendingBatch pending) {
+        if (!pending.result.isDone() || pending.result.isCancelled()) {
+            return false;
+        }
+        try {
+            return pending.result.get();
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            return false; // Not thrown, the upload is done
+        }
     }
 
     private void deleteObservations(long minId, long maxId) {
@@ -251,25 +257,23 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 new String[]{String.valueOf(minId), String.valueOf(maxId)});
     }
 
-    private void increaseRetryCounter(Cursor cursor, SyncResult result) {
+    private void increaseRetryCounter(ReportBatch reports, SyncResult result) {
         ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
         int updates = 0;
         int deletes = 0;
 
-        cursor.moveToPosition(-1);
-        int columnId = cursor.getColumnIndex(Reports._ID);
-        int columnRetry = cursor.getColumnIndex(Reports.RETRY_NUMBER);
-        while (cursor.moveToNext()) {
-            int retry = cursor.getInt(columnRetry) + 1;
+        for (int i = 0; i < reports.observations; i++) {
+            String id = String.valueOf(reports.getId(i));
+            int retry = reports.getRetryNumber(i) + 1;
             if (retry >= MAX_RETRY_COUNT) {
                 batch.add(ContentProviderOperation.newDelete(Reports.CONTENT_URI)
-                        .withSelection(Reports._ID + "=?", new String[]{cursor.getString(columnId)})
+                        .withSelection(Reports._ID + "=?", new String[]{id})
                         .build()
                 );
                 deletes += 1;
             } else {
                 batch.add(ContentProviderOperation.newUpdate(Reports.CONTENT_URI)
-                        .withSelection(Reports._ID + "=?", new String[]{cursor.getString(columnId)})
+                        .withSelection(Reports._ID + "=?", new String[]{id})
                         .withValue(Reports.RETRY_NUMBER, retry)
                         .build());
                 updates += 1;
@@ -328,7 +332,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         mContentResolver.applyBatch(DatabaseContract.CONTENT_AUTHORITY, updateBatch);
     }
 
-    private boolean uploadReportMirror(byte body[]) {
+    private boolean uploadReportMirror(RequestBody body) {
         if (!isMirrorEnabled) return true;
 
         Submitter s = new Submitter(getContext()) {
@@ -339,7 +343,42 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         };
 
-        return s.cleanSend(body);
+        try {
+            return s.cleanSend(body);
+        } finally {
+            s.close();
+        }
     }
 
+    private class UploadTask implements Callable<Boolean> {
+        private final ReportBatch mBatch;
+        private long mElapsedTime;
+
+        UploadTask(ReportBatch batch) {
+            mBatch = batch;
+        }
+
+        /** Time spent sending the batch, read once the result is available. */
+        long getElapsedTime() {
+            return mElapsedTime;
+        }
+
+        @Override
+        public Boolean call() {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                if (!uploadReportMirror(mBatch)) {
+                    return false;
+                }
+                Submitter submitter = new Submitter(getContext());
+                try {
+                    return submitter.cleanSend(mBatch);
+                } finally {
+                    submitter.close();
+                }
+            } finally {
+                mElapsedTime = SystemClock.elapsedRealtime() - start;
+            }
+        }
+    }
 }
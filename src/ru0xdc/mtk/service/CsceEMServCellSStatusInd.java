@@ -4,14 +4,25 @@ package ru0xdc.mtk.service;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * [RR 3G CsceEMServCellSStatusInd]
+ *
+ * Decoded from the hex response of the engineering mode by the MTK service, one indication
+ * per response, then passed to the app as a Parcel.
  */
 public class CsceEMServCellSStatusInd implements Parcelable {
 
+    /**
+     * Size of the FDD indication, in bytes (two hex digits each)
+     */
+    public static final int FDD_SIZE = 44;
+
+    /**
+     * Size of the TDD indication, without ecno and quality_measure
+     */
+    public static final int TDD_SIZE = 40;
+
     public final int refCount;
 
     public final int msgLen;
@@ -55,6 +66,9 @@ public class CsceEMServCellSStatusInd implements Parcelable {
         this(hexResponse, false);
     }
 
+    /**
+     * Decodes the indication straight from the hex digits.
+     */
     public CsceEMServCellSStatusInd(String hexResponse, boolean isTdd) {
         // E7F80B000E03D929E00001EE8D00000000500100004400000020FAFF0024FFFF06000001B0FFFFFFF2014B05
         // E7 F8 0B00 0E 03 D929 E000 01 EE 8D 000000 00500100 00440000 0020FAFF 0024FFFF 0600 00 01 B0FFFFFF F2014B05
@@ -75,36 +89,62 @@ public class CsceEMServCellSStatusInd implements Parcelable {
         // band: 1
         // rssi: -80 (0xffffffb0)
         // cell_ident: 88801778 (0x054b01f2)
-        ByteBuffer bb = ByteBuffer.wrap(hexStringToByteArray(hexResponse)).order(ByteOrder.LITTLE_ENDIAN);
-
-        refCount = bb.get() & 0xff;
-        bb.get();  // alignment
-        msgLen = bb.getShort() & 0xffff;
-        celIdx = bb.get() & 0xff;
-        bb.get();  // alignment
-        uarfacnDl = bb.getShort() & 0xffff;
-        psc = bb.getShort() & 0xffff;
-        isCriteriaSatisfied = bb.get() != 0;
-        qQualMin = bb.get();
-        qRxLevMin = bb.get();
-        bb.position(bb.position() + 3); // alignment
-        srxlev = bb.getInt();
-        spual = bb.getInt();
-        rscp = bb.getInt() / 4096f;
+        final int size = isTdd ? TDD_SIZE : FDD_SIZE;
+        if (hexResponse.length() < 2 * size) {
+            throw new IllegalArgumentException("Response too short: " + hexResponse.length() + " hex digits");
+        }
+
+        // Byte positions, little endian
+        refCount = getByte(hexResponse, 0);
+        // 1: alignment
+        msgLen = get2ub(hexResponse, 2);
+        celIdx = getByte(hexResponse, 4);
+        // 5: alignment
+        uarfacnDl = get2ub(hexResponse, 6);
+        psc = get2ub(hexResponse, 8);
+        isCriteriaSatisfied = getByte(hexResponse, 10) != 0;
+        qQualMin = (byte) getByte(hexResponse, 11);
+        qRxLevMin = (byte) getByte(hexResponse, 12);
+        // 13-15: alignment
+        srxlev = get4b(hexResponse, 16);
+        spual = get4b(hexResponse, 20);
+        rscp = get4b(hexResponse, 24) / 4096f;
         if (!isTdd) {
-            ecno = bb.getInt() / 4096f;
+            ecno = get4b(hexResponse, 28) / 4096f;
+            cycleLen = get2ub(hexResponse, 32);
+            qualityMeasure = getByte(hexResponse, 34);
+            band = getByte(hexResponse, 35);
+            rssi = get4b(hexResponse, 36);
+            cellIdentity = get4b(hexResponse, 40) & 0xffffffffl;
         } else {
             ecno = 0;
-        }
-        cycleLen = bb.getShort() & 0xffff;
-        if (!isTdd)
-            qualityMeasure = bb.get() & 0xff;
-        else
+            cycleLen = get2ub(hexResponse, 28);
             qualityMeasure = 0;
-        band = bb.get() & 0xff;
-        if (isTdd) bb.get(); // alignment
-        rssi = bb.getInt();
-        cellIdentity = bb.getInt() & 0xffffffffl;
+            band = getByte(hexResponse, 30);
+            // 31: alignment
+            rssi = get4b(hexResponse, 32);
+            cellIdentity = get4b(hexResponse, 36) & 0xffffffffl;
+        }
+    }
+
+    private static int getByte(String hex, int pos) {
+        final int i = 2 * pos;
+        return (hexDigit(hex.charAt(i)) << 4) | hexDigit(hex.charAt(i + 1));
+    }
+
+    private static int get2ub(String hex, int pos) {
+        return getByte(hex, pos) | (getByte(hex, pos + 1) << 8);
+    }
+
+    private static int get4b(String hex, int pos) {
+        return get2ub(hex, pos) | (get2ub(hex, pos + 2) << 16);
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        throw new IllegalArgumentException("Invalid hex digit: " + c);
     }
 
     public CsceEMServCellSStatusInd(Parcel in) {
@@ -127,16 +167,6 @@ public class CsceEMServCellSStatusInd implements Parcelable {
         cellIdentity = in.readLong();
     }
 
-    public static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
-        }
-        return data;
-    }
-
     @Override
     public String toString() {
         return "ref_count: " + refCount
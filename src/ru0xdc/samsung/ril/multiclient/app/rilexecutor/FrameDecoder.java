@@ -0,0 +1,132 @@
+package ru0xdc.samsung.ril.multiclient.app.rilexecutor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the stream read from the RIL socket into its frames, each one preceded by its
+ * big-endian 32-bit length.
+ *
+ * Every complete frame in the buffer is handed over after each read, as a slice of the
+ * buffer. The buffer grows to fit large frames, and frames above the maximum size are
+ * skipped without losing the framing. Bytes are only moved when an incomplete frame
+ * reaches the end of the buffer.
+ */
+class FrameDecoder {
+    private static final String TAG = FrameDecoder.class.getSimpleName();
+
+    private static final int HEADER_SIZE = 4;
+
+    interface FrameHandler {
+        /**
+         * The data is only valid until the handler returns.
+         */
+        void onFrame(byte data[], int offset, int length);
+    }
+
+    private final int mMaxFrameSize;
+    private byte mBuf[];
+    private int mStart;
+    private int mEnd;
+    private int mSkip;
+
+    FrameDecoder(int initialSize, int maxFrameSize) {
+        mBuf = new byte[Math.max(initialSize, HEADER_SIZE)];
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Reads once from the stream and hands all the complete frames over to the handler.
+     *
+     * @return false at the end of the stream
+     */
+    boolean readFrom(InputStream in, FrameHandler handler) throws IOException {
+        if (mEnd == mBuf.length) {
+            compact();
+        }
+
+        final int rcvd = in.read(mBuf, mEnd, mBuf.length - mEnd);
+        if (rcvd < 0) {
+            return false;
+        }
+        mEnd += rcvd;
+
+        while (mEnd > mStart) {
+            final int available = mEnd - mStart;
+
+            if (mSkip > 0) {
+                final int skipped = Math.min(mSkip, available);
+                mStart += skipped;
+                mSkip -= skipped;
+                continue;
+            }
+
+            if (available < HEADER_SIZE) {
+                break;
+            }
+
+            final int length = ((mBuf[mStart] & 0xff) << 24)
+                    | ((mBuf[mStart + 1] & 0xff) << 16)
+                    | ((mBuf[mStart + 2] & 0xff) << 8)
+                    | (mBuf[mStart + 3] & 0xff);
+
+            if (length < 0) {
+                // No way to find the next frame
+                Log.e(TAG, "Invalid frame length: " + length + ", dropping " + available + " bytes");
+                mStart = mEnd;
+                break;
+            }
+
+            if (length > mMaxFrameSize) {
+                Log.e(TAG, "Frame too big, skipped. Length: " + length);
+                mStart += HEADER_SIZE;
+                mSkip = length;
+                continue;
+            }
+
+            if (available < HEADER_SIZE + length) {
+                ensureCapacity(HEADER_SIZE + length);
+                break;
+            }
+
+            handler.onFrame(mBuf, mStart + HEADER_SIZE, length);
+            mStart += HEADER_SIZE + length;
+        }
+
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for a frame of frameSize bytes, header included, from mStart.
+     */
+    private void ensureCapacity(int frameSize) {
+        if (frameSize > mBuf.length) {
+            int size = mBuf.length;
+            while (size < frameSize) {
+                size *= 2;
+            }
+            final byte grown[] = new byte[size];
+            System.arraycopy(mBuf, mStart, grown, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+            mBuf = grown;
+        } else if (mStart + frameSize > mBuf.length) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        if (mStart == 0) {
+            return;
+        }
+        System.arraycopy(mBuf, mStart, mBuf, 0, mEnd - mStart);
+        mEnd -= mStart;
+        mStart = 0;
+    }
+}
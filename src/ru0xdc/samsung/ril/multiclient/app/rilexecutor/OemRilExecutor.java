@@ -25,5 +25,11 @@ public interface OemRilExecutor {
      */
     public void invokeOemRilRequestRaw(byte data[], Message response);
 
+    /**
+     * Same as {@link #invokeOemRilRequestRaw(byte[], android.os.Message)}, failing with
+     * an exception if there is no response within timeout milliseconds (0 for no timeout).
+     */
+    public void invokeOemRilRequestRaw(byte data[], Message response, long timeout);
+
 
 }
@@ -15,9 +15,9 @@
  */
 package ru0xdc.samsung.ril.multiclient.app.rilexecutor;
 
-import android.annotation.SuppressLint;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
+import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.util.Log;
@@ -28,10 +28,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 public class SamsungMulticlientRilExecutor implements OemRilExecutor {
@@ -55,9 +55,18 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
     private static final boolean DBG = BuildConfig.DEBUG & true;
     private static final String TAG = SamsungMulticlientRilExecutor.class.getSimpleName();
 
+    private final String mSocketName;
     private volatile LocalSocketThread mThread;
 
     public SamsungMulticlientRilExecutor() {
+        this(MULTICLIENT_SOCKET);
+    }
+
+    /**
+     * @param socketName name of the local socket of the RIL daemon, in the abstract namespace
+     */
+    public SamsungMulticlientRilExecutor(String socketName) {
+        mSocketName = socketName;
     }
 
     @Override
@@ -79,7 +88,7 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
 
         LocalSocket s = new LocalSocket();
         try {
-            s.connect(new LocalSocketAddress(MULTICLIENT_SOCKET));
+            s.connect(new LocalSocketAddress(mSocketName));
         } catch (IOException e) {
             return DetectResult.Unavailable("Multiclient socket is not available");
         } finally {
@@ -99,7 +108,7 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
             Log.e(TAG, "OEM raw request executor thread is running");
             return;
         }
-        mThread = new LocalSocketThread(MULTICLIENT_SOCKET);
+        mThread = new LocalSocketThread(mSocketName);
         mThread.start();
     }
 
@@ -114,17 +123,63 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
     }
 
     @Override
-    public synchronized void invokeOemRilRequestRaw(byte[] data, Message response) {
-        if (mThread == null) {
+    public void invokeOemRilRequestRaw(byte[] data, Message response) {
+        invokeOemRilRequestRaw(data, response, 0);
+    }
+
+    @Override
+    public void invokeOemRilRequestRaw(byte[] data, Message response, long timeout) {
+        final LocalSocketThread thread = mThread;
+        if (thread == null) {
             Log.e(TAG, "OEM raw request executor thread is not running");
+            response.obj = new RawResult(null, new RemoteException("Executor is not running"));
+            response.sendToTarget();
             return;
         }
-        mThread.invokeOemRilRequestRaw(data, response);
+        thread.invokeOemRilRequestRaw(data, response, timeout);
+    }
+
+    /**
+     * A request written to the socket, or queued for writing, and waiting for its response.
+     * It is completed once, by whoever removes it from the pending request table first.
+     */
+    private static final class PendingRequest implements Runnable {
+        final int token;
+        final byte[] packet;
+        final Message response;
+        final Handler handler;
+        private final LocalSocketThread mThread;
+
+        PendingRequest(LocalSocketThread thread, int token, byte[] packet, Message response) {
+            mThread = thread;
+            this.token = token;
+            this.packet = packet;
+            this.response = response;
+            this.handler = response.getTarget();
+        }
+
+        /**
+         * Timeout, run on the handler of the response.
+         */
+        @Override
+        public void run() {
+            mThread.complete(this, null, new RemoteException("Request timeout, token: " + token));
+        }
     }
 
     public class LocalSocketThread extends Thread {
 
-        private static final int MAX_MESSAGES = 30;
+        /**
+         * Size of the pending request table, a power of two.
+         */
+        private static final int MAX_PENDING_REQUESTS = 64;
+
+        private static final int RX_BUFFER_SIZE = 4096;
+
+        /**
+         * Larger responses are skipped
+         */
+        private static final int MAX_RX_FRAME_SIZE = 256 * 1024;
 
         private final LocalSocketAddress mSocketPath;
         private final AtomicBoolean mCancelRequested = new AtomicBoolean();
@@ -133,16 +188,19 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
         private volatile InputStream mInputStream;
         private volatile OutputStream mOutputStream;
 
-        private final Random mTokenGen = new Random();
-        private final Map<Integer, Message> mMessages;
+        // Tokens are sequential, each one owns the slot token % MAX_PENDING_REQUESTS
+        private final AtomicInteger mNextToken = new AtomicInteger();
+        private final AtomicReferenceArray<PendingRequest> mPendingRequests =
+                new AtomicReferenceArray<PendingRequest>(MAX_PENDING_REQUESTS);
+        private final LinkedBlockingQueue<PendingRequest> mWriteQueue = new LinkedBlockingQueue<PendingRequest>();
+        private final Thread mWriterThread;
 
-        @SuppressLint("UseSparseArrays")
         public LocalSocketThread(String socketPath) {
             mSocketPath = new LocalSocketAddress(socketPath);
 
             mInputStream = null;
             mOutputStream = null;
-            mMessages = new HashMap<Integer, Message>();
+            mWriterThread = new Thread(mWriter, "MultiClientWriter");
         }
 
         public void cancel() {
@@ -152,57 +210,100 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
                 disconnect();
                 notifyAll();
             }
+            mWriterThread.interrupt();
         }
 
-        public synchronized void invokeOemRilRequestRaw(byte[] data, Message response) {
-            int token;
-            if (mMessages.size() > MAX_MESSAGES) {
-                Log.e(TAG, "message queue is full");
+        /**
+         * Queues the request for the writer thread, and returns at once.
+         *
+         * @param timeout in milliseconds, 0 for none
+         */
+        public void invokeOemRilRequestRaw(byte[] data, Message response, long timeout) {
+            final int token = mNextToken.incrementAndGet();
+            final PendingRequest request = new PendingRequest(this, token, marshallRequest(token, data), response);
+
+            if (!mPendingRequests.compareAndSet(slot(token), null, request)) {
+                Log.e(TAG, "Too many requests in flight");
+                response.obj = new RawResult(null, new RemoteException("Too many requests in flight"));
+                response.sendToTarget();
                 return;
             }
 
-            if (mOutputStream == null) {
-                Log.e(TAG, "Local write() error: not connected");
+            if (mCancelRequested.get()) {
+                complete(request, null, new RemoteException("Executor is stopped"));
                 return;
             }
 
-            do {
-                token = mTokenGen.nextInt();
-            } while (mMessages.containsKey(token));
-
-            byte req[] = marshallRequest(token, data);
+            if (timeout > 0) {
+                request.handler.postDelayed(request, timeout);
+            }
+            mWriteQueue.add(request);
+        }
 
-            // if (DBG) Log.v(TAG, String.format("invokeOemRilRequestRaw() token: 0x%X, header: %s, req: %s ",
-            //       token, HexDump.toHexString(getHeader(req)), HexDump.toHexString(req)));
+        private int slot(int token) {
+            return token & (MAX_PENDING_REQUESTS - 1);
+        }
 
-            try {
-                mOutputStream.write(getHeader(req));
-                mOutputStream.write(req);
-                mMessages.put(token, response);
-            } catch (IOException e) {
-                response.obj = new RawResult(null, e);
-                response.sendToTarget();
+        /**
+         * Delivers the result, unless the request has already been completed.
+         */
+        void complete(PendingRequest request, byte[] result, Exception ex) {
+            if (!mPendingRequests.compareAndSet(slot(request.token), request, null)) {
+                return;
             }
+            request.handler.removeCallbacks(request);
+            request.response.obj = new RawResult(result, ex);
+            request.response.sendToTarget();
         }
 
-        private byte[] getHeader(byte data[]) {
-            int len = data.length;
-            return new byte[]{
-                    (byte) ((len >> 24) & 0xff),
-                    (byte) ((len >> 16) & 0xff),
-                    (byte) ((len >> 8) & 0xff),
-                    (byte) (len & 0xff)
-            };
-        }
+        private final Runnable mWriter = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!mCancelRequested.get()) {
+                        final PendingRequest request = mWriteQueue.take();
+                        if (mPendingRequests.get(slot(request.token)) != request) {
+                            continue; // Completed before being written (timeout or disconnect)
+                        }
+
+                        // if (DBG) Log.v(TAG, String.format("invokeOemRilRequestRaw() token: 0x%X, req: %s ",
+                        //       request.token, HexDump.toHexString(request.packet)));
+
+                        final OutputStream out = mOutputStream;
+                        try {
+                            if (out == null) {
+                                throw new IOException("Local write() error: not connected");
+                            }
+                            out.write(request.packet);
+                        } catch (IOException e) {
+                            complete(request, null, e);
+                        }
+                    }
+                } catch (InterruptedException ignore) {
+                }
+                flushQueueWithException(new RemoteException("Writer stopped"));
+            }
+        };
 
+        /**
+         * @return the request preceded by its length, as written to the socket
+         */
         private byte[] marshallRequest(int token, byte data[]) {
             Parcel p = Parcel.obtain();
             p.writeInt(RIL_REQUEST_OEM_RAW);
             p.writeInt(token);
             p.writeByteArray(data);
-            byte[] res =  p.marshall();
+            byte[] req =  p.marshall();
             p.recycle();
-            return res;
+
+            final int len = req.length;
+            byte[] packet = new byte[len + 4];
+            packet[0] = (byte) ((len >> 24) & 0xff);
+            packet[1] = (byte) ((len >> 16) & 0xff);
+            packet[2] = (byte) ((len >> 8) & 0xff);
+            packet[3] = (byte) (len & 0xff);
+            System.arraycopy(req, 0, packet, 4, len);
+            return packet;
         }
 
         public synchronized void disconnect() {
@@ -249,11 +350,16 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
             mOutputStream = null;
         }
 
+        private final FrameDecoder.FrameHandler mFrameHandler = new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(byte data[], int offset, int length) {
+                processRxPacket(data, offset, length);
+            }
+        };
+
         @Override
         public void run() {
-            int rcvd;
-            int endpos = 0;
-            final byte buf[] = new byte[4096];
+            final FrameDecoder decoder = new FrameDecoder(RX_BUFFER_SIZE, MAX_RX_FRAME_SIZE);
 
             Log.i(TAG, "BEGIN LocalSocketThread-Socket");
             setName("MultiClientThread");
@@ -265,35 +371,18 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
                 mOutputStream = mSocket.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "Connect error", e);
+                mCancelRequested.set(true);
+                flushQueueWithException(e);
                 return;
             }
+            mWriterThread.start();
 
             while (!mCancelRequested.get()) {
                 try {
-                    rcvd = mInputStream.read(buf, endpos, buf.length - endpos);
-                    if (rcvd < 0) {
+                    if (!decoder.readFrom(mInputStream, mFrameHandler)) {
                         flushQueueWithException(new RemoteException("Remote side closed connection"));
                         break;
                     }
-                    endpos += rcvd;
-                    if (endpos < 4) continue;
-
-                    int msgLen = (buf[0] << 24) | (buf[1] << 16) | (buf[2] << 8) | (buf[3] & 0xff);
-                    if (msgLen + 4 > buf.length) {
-                        Log.e(TAG, "message to big. Length: " + msgLen);
-                        endpos = 0;
-                        continue;
-                    }
-                    if (endpos >= msgLen + 4) {
-                        processRxPacket(buf, 4, msgLen);
-                        int secondPktPos = msgLen + 4;
-                        if (secondPktPos != endpos) {
-                            System.arraycopy(buf, secondPktPos, buf, 0, endpos - secondPktPos);
-                        }
-                        endpos -= msgLen + 4;
-                    }
-
-                    if (endpos == buf.length) endpos = 0;
                 } catch (IOException e) {
                     flushQueueWithException(e);
                     break;
@@ -302,7 +391,7 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
             disconnect();
         }
 
-        private synchronized void processRxPacket(byte data[], int pos, int length) {
+        private void processRxPacket(byte data[], int pos, int length) {
             int responseType;
             Parcel p;
 
@@ -353,25 +442,24 @@ public class SamsungMulticlientRilExecutor implements OemRilExecutor {
             if (token == null) {
                 Log.e(TAG, "token is null", errorEx);
             } else {
-                synchronized (this) {
-                    Message m = mMessages.remove(token);
-                    if (m != null) {
-                        m.obj = new RawResult(responseData, errorEx);
-                        m.sendToTarget();
-                    } else {
-                        Log.i(TAG, "Message with token " + token + " not found");
-                    }
+                PendingRequest request = mPendingRequests.get(slot(token));
+                if (request != null && request.token == token) {
+                    complete(request, responseData, errorEx);
+                } else {
+                    Log.i(TAG, "Message with token " + token + " not found");
                 }
             }
             return RIL_CLIENT_ERR_SUCCESS;
         }
 
-        private synchronized void flushQueueWithException(Exception ex) {
-            for (Message m: mMessages.values()) {
-                m.obj = new RawResult(null, ex);
-                m.sendToTarget();
+        private void flushQueueWithException(Exception ex) {
+            for (int i = 0; i < MAX_PENDING_REQUESTS; ++i) {
+                PendingRequest request = mPendingRequests.get(i);
+                if (request != null) {
+                    complete(request, null, ex);
+                }
             }
-            mMessages.clear();
+            mWriteQueue.clear();
         }
     }
 